@@ -0,0 +1,156 @@
+package ru.n5g.watchdir;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sequenced event record. Also the binary framing of the event stream between
+ * {@link EventStreamServer} and {@link RemoteWatchDir}.
+ * <pre>
+ * subscribe (client -> server): int MAGIC, long epoch, long lastSeen, short count, count * (short len, utf-8 prefix)
+ * event     (server -> client): byte kind, long sequence, short len, utf-8 path
+ * </pre>
+ * A negative {@code lastSeen} subscribes to live events only. Sequence numbers are
+ * only meaningful within one server epoch, which the server sends first as an
+ * {@link #EPOCH} frame. When the client's position cannot be resumed (other epoch,
+ * or older than the server backlog) the server sends {@link #RESET} or {@link #GAP}
+ * frames, one per affected path.
+ */
+final class EventFrame
+{
+
+	static final int MAGIC = 0x57445332; // "WDS2"
+
+	static final byte CREATED = 1;
+	static final byte MODIFIED = 2;
+	static final byte DELETED = 3;
+	/**
+	 * Events under the path were lost on the server; sequenced like a file event.
+	 */
+	static final byte OVERFLOW = 4;
+
+	/**
+	 * Control frames: not sequenced, not filtered by prefix.
+	 * EPOCH carries the server epoch in the sequence field.
+	 */
+	static final byte EPOCH = 16;
+	/**
+	 * Resume impossible, the stream continues live from {@code sequence}.
+	 */
+	static final byte RESET = 17;
+	/**
+	 * Events up to {@code sequence} were dropped from the backlog, replay continues after it.
+	 */
+	static final byte GAP = 18;
+	static final byte HEARTBEAT = 19;
+
+	final byte kind;
+	final long sequence;
+	final Path path;
+	final byte[] encodedPath;
+
+	EventFrame(byte kind, long sequence, Path path) {
+		this.kind = kind;
+		this.sequence = sequence;
+		this.path = path;
+		this.encodedPath = path.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	EventFrame(byte kind, long sequence, Path path, byte[] encodedPath) {
+		this.kind = kind;
+		this.sequence = sequence;
+		this.path = path;
+		this.encodedPath = encodedPath;
+	}
+
+	void writeTo(DataOutputStream out) throws IOException {
+		out.writeByte(kind);
+		out.writeLong(sequence);
+		out.writeShort(encodedPath.length);
+		out.write(encodedPath);
+	}
+
+	static EventFrame readFrom(DataInputStream in) throws IOException {
+		final byte kind = in.readByte();
+		final long sequence = in.readLong();
+		final byte[] encodedPath = new byte[in.readUnsignedShort()];
+		in.readFully(encodedPath);
+		final Path path = Paths.get(new String(encodedPath, StandardCharsets.UTF_8));
+		return new EventFrame(kind, sequence, path, encodedPath);
+	}
+
+	boolean isControl() {
+		return kind >= EPOCH;
+	}
+
+	void deliver(FileChangeListener listener) {
+		switch (kind) {
+			case CREATED:
+				listener.fileCreated(path);
+				break;
+			case MODIFIED:
+				listener.fileModified(path);
+				break;
+			case DELETED:
+				listener.fileDeleted(path);
+				break;
+			case OVERFLOW:
+			case RESET:
+			case GAP:
+				listener.overflow(path);
+				break;
+			default:
+				// unknown kinds from a newer server are skipped
+		}
+	}
+
+	static void writeSubscribe(DataOutputStream out, long epoch, long lastSeen, List<Path> prefixes) throws IOException {
+		out.writeInt(MAGIC);
+		out.writeLong(epoch);
+		out.writeLong(lastSeen);
+		out.writeShort(prefixes.size());
+		for (Path prefix : prefixes) {
+			writeString(out, prefix.toString());
+		}
+	}
+
+	static Subscription readSubscribe(DataInputStream in) throws IOException {
+		if (in.readInt() != MAGIC) {
+			throw new IOException("Unknown event stream protocol");
+		}
+		final long epoch = in.readLong();
+		final long lastSeen = in.readLong();
+		final int count = in.readUnsignedShort();
+		final List<Path> prefixes = new ArrayList<>(count);
+		for (int i = 0; i < count; i++) {
+			final byte[] bytes = new byte[in.readUnsignedShort()];
+			in.readFully(bytes);
+			prefixes.add(Paths.get(new String(bytes, StandardCharsets.UTF_8)));
+		}
+		return new Subscription(epoch, lastSeen, prefixes);
+	}
+
+	static final class Subscription {
+		final long epoch;
+		final long lastSeen;
+		final List<Path> prefixes;
+
+		Subscription(long epoch, long lastSeen, List<Path> prefixes) {
+			this.epoch = epoch;
+			this.lastSeen = lastSeen;
+			this.prefixes = prefixes;
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String value) throws IOException {
+		final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+		out.writeShort(bytes.length);
+		out.write(bytes);
+	}
+}
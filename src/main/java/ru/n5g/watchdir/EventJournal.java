@@ -0,0 +1,944 @@
+package ru.n5g.watchdir;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+
+/**
+ * Журнал событий на диске. Регистрируется как обычный слушатель в {@link WatchDir}
+ * и записывает каждое событие с последовательным номером.
+ * <p/>
+ * Журнал состоит из сегментов фиксированного размера, отображенных в память.
+ * Запись на диск (fsync) выполняется пачками: по таймеру и после каждых {@code syncEvery} событий.
+ * Подписчики получают сначала события после своего последнего подтвержденного номера,
+ * затем новые события. Номер подтверждает сам подписчик ({@link #commit(String)}) после того,
+ * как обработал события, поэтому после падения процесса события доставляются повторно,
+ * но не теряются. Если слушатель подписчика бросил исключение, доставка ему останавливается
+ * на этом событии и повторяется с него по таймеру с нарастающей паузой или сразу при {@link #sync()}.
+ * Сегменты для повторной доставки и для нового подписчика читаются вне блокировки журнала,
+ * поэтому такой подписчик не задерживает запись событий.
+ * <p/>
+ * Закрытые сегменты сжимаются: для каждого пути остается только последнее событие.
+ * Новый сегмент собирается вне блокировки журнала; точка фиксации - переименование
+ * во временное имя {@code compact.<последний сегмент>.<номер>.done}, после которого старые
+ * сегменты удаляются, в том числе при восстановлении после падения.
+ * <pre>
+ * запись: int length, int crc32, long sequence, byte kind, utf-8 path
+ * </pre>
+ */
+public class EventJournal implements FileChangeListener, Closeable
+{
+    public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+    public static final int DEFAULT_SYNC_EVERY = 1024;
+    public static final long DEFAULT_SYNC_INTERVAL = 100;
+    public static final int DEFAULT_COMPACT_THRESHOLD = 8;
+
+    private static final int MIN_SEGMENT_SIZE = 4096;
+    /**
+     * length + crc32
+     */
+    private static final int HEADER = 8;
+    /**
+     * sequence + kind
+     */
+    private static final int BODY = 9;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String OFFSET_SUFFIX = ".offset";
+    private static final String COMPACT_TMP = "compact.tmp";
+    private static final String COMPACT_DONE_SUFFIX = ".done";
+    /**
+     * Пауза перед повтором доставки после исключения слушателя, удваивается с каждой неудачей
+     */
+    private static final long MIN_RETRY_DELAY = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long MAX_RETRY_DELAY = TimeUnit.SECONDS.toNanos(30);
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int syncEvery;
+    private final int compactThreshold;
+    /**
+     * Закрытые сегменты по номеру первого события
+     */
+    private final TreeMap<Long, Path> sealed = new TreeMap<>();
+    private final Map<String, Consumer> consumers = new LinkedHashMap<>();
+    private final CRC32 crc = new CRC32();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private final ScheduledExecutorService syncExec;
+
+    private Path activeFile;
+    private MappedByteBuffer active;
+    private long sequence;
+    private int unsynced = 0;
+    private boolean closed = false;
+
+    private Logger logger = LoggerFactory.getLogger(getClass().getName());
+
+    public EventJournal(Path directory) throws IOException
+    {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_SYNC_EVERY, DEFAULT_SYNC_INTERVAL, DEFAULT_COMPACT_THRESHOLD);
+    }
+
+    /**
+     * @param segmentSize      размер сегмента в байтах
+     * @param syncEvery        сброс на диск после указанного количества событий
+     * @param syncInterval     сброс на диск по таймеру, мс; 0 - только по количеству и {@link #sync()}
+     * @param compactThreshold количество закрытых сегментов, после которого запускается сжатие
+     */
+    public EventJournal(Path directory, int segmentSize, int syncEvery, long syncInterval, int compactThreshold)
+            throws IOException
+    {
+        if (segmentSize < MIN_SEGMENT_SIZE)
+        {
+            throw new IllegalArgumentException("segmentSize must be at least " + MIN_SEGMENT_SIZE + ": " + segmentSize);
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.syncEvery = Math.max(1, syncEvery);
+        this.compactThreshold = Math.max(2, compactThreshold);
+
+        Files.createDirectories(directory);
+        recover();
+
+        syncExec = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                final Thread thread = new Thread(r, "watchdir-journal-sync");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if (syncInterval > 0)
+        {
+            syncExec.scheduleWithFixedDelay(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    sync(false);
+                }
+            }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    public void fileModified(Path file)
+    {
+        append(EventFrame.MODIFIED, file);
+    }
+
+    @Override
+    public void fileCreated(Path file)
+    {
+        append(EventFrame.CREATED, file);
+    }
+
+    @Override
+    public void fileDeleted(Path file)
+    {
+        append(EventFrame.DELETED, file);
+    }
+
+    /**
+     * Потеря событий ОС тоже записывается: подписчик, догоняющий журнал после падения,
+     * должен узнать, что папку нужно пересканировать
+     */
+    @Override
+    public void overflow(Path directory)
+    {
+        append(EventFrame.OVERFLOW, directory);
+    }
+
+    /**
+     * Номер последнего записанного события
+     */
+    public synchronized long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * Подключить подписчика: доставить события после его подтвержденного номера,
+     * затем доставлять новые события. Номер подтверждает сам подписчик через {@link #commit(String)}
+     * или {@link #commit(String, long)}.
+     */
+    public void subscribe(String consumer, FileChangeListener listener) throws IOException
+    {
+        subscribe(consumer, listener, false);
+    }
+
+    /**
+     * @param autoCommit подтверждать доставленные события при каждом {@link #sync()}, не дожидаясь
+     *                   подписчика. Подходит для слушателей, которые обрабатывают событие целиком
+     *                   внутри вызова.
+     */
+    public void subscribe(String consumer, FileChangeListener listener, boolean autoCommit)
+            throws IOException
+    {
+        final Consumer c;
+        synchronized (this)
+        {
+            checkOpen();
+            final long committed = getCommitted(consumer);
+            c = new Consumer(consumer, listener, committed, autoCommit);
+            consumers.put(consumer, c);
+        }
+        catchUp(c);
+    }
+
+    public synchronized void unsubscribe(String consumer) throws IOException
+    {
+        final Consumer c = consumers.remove(consumer);
+        if (c != null && c.autoCommit && !closed)
+        {
+            commitDelivered(c);
+        }
+    }
+
+    /**
+     * Подтвержденный номер подписчика, 0 - подписчик еще ничего не подтверждал
+     */
+    public synchronized long getCommitted(String consumer) throws IOException
+    {
+        final Consumer c = consumers.get(consumer);
+        if (c != null)
+        {
+            return c.committed;
+        }
+        final Path file = offsetFile(consumer);
+        if (!Files.exists(file))
+        {
+            return 0;
+        }
+        final String value = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim();
+        try
+        {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e)
+        {
+            logger.warn("Испорчен номер подписчика {}: '{}', доставка с начала журнала", consumer, value);
+            return 0;
+        }
+    }
+
+    /**
+     * Номер последнего события, которое слушатель подписчика принял без исключения
+     */
+    public synchronized long getDelivered(String consumer)
+    {
+        final Consumer c = consumers.get(consumer);
+        if (c == null)
+        {
+            throw new IllegalArgumentException("Unknown consumer: " + consumer);
+        }
+        return c.delivered;
+    }
+
+    /**
+     * Подтвердить все события, доставленные подписчику
+     */
+    public synchronized void commit(String consumer) throws IOException
+    {
+        commit(consumer, getDelivered(consumer));
+    }
+
+    /**
+     * Явно подтвердить номер подписчика. Журнал до этого номера сначала сбрасывается на диск.
+     */
+    public synchronized void commit(String consumer, long committed) throws IOException
+    {
+        checkOpen();
+        if (committed > sequence)
+        {
+            throw new IllegalArgumentException("Sequence " + committed + " is not written yet, last is " + sequence);
+        }
+        if (unsynced > 0)
+        {
+            forceActive();
+        }
+        final Path file = offsetFile(consumer);
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            writeFully(channel, ByteBuffer.wrap(Long.toString(committed).getBytes(StandardCharsets.US_ASCII)));
+            channel.force(true);
+        }
+        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        final Consumer c = consumers.get(consumer);
+        if (c != null)
+        {
+            c.committed = committed;
+            c.delivered = Math.max(c.delivered, committed);
+        }
+    }
+
+    /**
+     * Доставить слушателю события с номером больше {@code after}
+     *
+     * @return номер последнего доставленного события или {@code after}
+     */
+    public synchronized long replay(long after, FileChangeListener listener) throws IOException
+    {
+        checkOpen();
+        long last = after;
+        for (Path file : segmentsAfter(after).values())
+        {
+            last = deliver(readSegment(file, crc), after, last, listener);
+        }
+        return deliver(scanActive(), after, last, listener);
+    }
+
+    /**
+     * Сбросить журнал на диск, сразу повторить доставку подписчикам, у которых она остановилась
+     * на ошибке, и сохранить номера подписчиков с автоматическим подтверждением
+     */
+    public void sync()
+    {
+        sync(true);
+    }
+
+    /**
+     * @param retryNow повторить доставку, не дожидаясь паузы после последней ошибки
+     */
+    private void sync(boolean retryNow)
+    {
+        final List<Consumer> due = new ArrayList<>();
+        synchronized (this)
+        {
+            if (closed)
+            {
+                return;
+            }
+            final long now = System.nanoTime();
+            for (Consumer c : consumers.values())
+            {
+                if (c.behind && (retryNow || now - c.retryAt >= 0))
+                {
+                    due.add(c);
+                }
+            }
+        }
+        for (Consumer c : due)
+        {
+            try
+            {
+                catchUp(c);
+            }
+            catch (IOException e)
+            {
+                logger.error("Ошибка чтения журнала " + directory + " для подписчика " + c.name, e);
+            }
+        }
+        synchronized (this)
+        {
+            flush();
+        }
+    }
+
+    /**
+     * Сбросить активный сегмент на диск и сохранить номера подписчиков с автоматическим подтверждением
+     */
+    private void flush()
+    {
+        if (closed)
+        {
+            return;
+        }
+        try
+        {
+            if (unsynced > 0)
+            {
+                forceActive();
+            }
+            for (Consumer c : consumers.values())
+            {
+                if (c.autoCommit)
+                {
+                    commitDelivered(c);
+                }
+            }
+        }
+        catch (IOException e)
+        {
+            logger.error("Ошибка сохранения журнала " + directory, e);
+        }
+    }
+
+    /**
+     * Сжать закрытые сегменты в один, оставив для каждого пути последнее событие.
+     * Блокировка журнала берется только для замены сегментов, запись событий во время сжатия продолжается.
+     */
+    public void compact() throws IOException
+    {
+        if (!compacting.compareAndSet(false, true))
+        {
+            return;
+        }
+        try
+        {
+            final Path done = prepareCompaction();
+            if (done != null)
+            {
+                finishCompaction(done);
+            }
+        }
+        finally
+        {
+            compacting.set(false);
+        }
+    }
+
+    /**
+     * Собрать сжатый сегмент из закрытых сегментов и зафиксировать его переименованием.
+     *
+     * @return зафиксированный файл {@code compact.<последний сегмент>.<номер>.done} или {@code null}
+     */
+    Path prepareCompaction() throws IOException
+    {
+        final TreeMap<Long, Path> snapshot;
+        synchronized (this)
+        {
+            checkOpen();
+            if (sealed.size() < 2)
+            {
+                return null;
+            }
+            snapshot = new TreeMap<>(sealed);
+        }
+
+        // закрытые сегменты не меняются, удаляет их только сжатие
+        final CRC32 checksum = new CRC32();
+        final LinkedHashMap<Object, EventFrame> latest = new LinkedHashMap<>();
+        for (Path file : snapshot.values())
+        {
+            for (EventFrame frame : readSegment(file, checksum))
+            {
+                final Object key = compactionKey(frame);
+                latest.remove(key);
+                latest.put(key, frame);
+            }
+        }
+
+        final Path tmp = directory.resolve(COMPACT_TMP);
+        long base = 0;
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            final ByteBuffer buffer = ByteBuffer.allocate(segmentSize);
+            for (EventFrame frame : latest.values())
+            {
+                if (base == 0)
+                {
+                    base = frame.sequence;
+                }
+                if (buffer.remaining() < recordSize(frame))
+                {
+                    buffer.flip();
+                    writeFully(channel, buffer);
+                    buffer.clear();
+                }
+                write(buffer, frame, checksum);
+            }
+            buffer.flip();
+            writeFully(channel, buffer);
+            channel.force(true);
+        }
+        final Path done = directory.resolve("compact." + snapshot.lastKey() + "." + base + COMPACT_DONE_SUFFIX);
+        Files.move(tmp, done, StandardCopyOption.ATOMIC_MOVE);
+        logger.debug("Журнал {} сжат, осталось {} событий", directory, latest.size());
+        return done;
+    }
+
+    private synchronized void finishCompaction(Path done) throws IOException
+    {
+        if (closed)
+        {
+            // завершится при следующем открытии
+            return;
+        }
+        final Long base = completeCompaction(done, sealed);
+        if (base != null)
+        {
+            sealed.put(base, segmentFile(base));
+        }
+    }
+
+    /**
+     * Удалить сегменты, вошедшие в сжатый, и поставить сжатый на их место.
+     * Повторный вызов после падения доводит замену до конца.
+     *
+     * @return номер первого события сжатого сегмента или {@code null}, если он пуст
+     */
+    private Long completeCompaction(Path done, SortedMap<Long, Path> segments) throws IOException
+    {
+        final String[] parts = done.getFileName().toString().split("\\.");
+        final long last = Long.parseLong(parts[1]);
+        final long base = Long.parseLong(parts[2]);
+        final SortedMap<Long, Path> replaced = segments.headMap(last + 1);
+        for (Path file : replaced.values())
+        {
+            Files.deleteIfExists(file);
+        }
+        replaced.clear();
+        if (base == 0)
+        {
+            Files.delete(done);
+            return null;
+        }
+        Files.move(done, segmentFile(base), StandardCopyOption.ATOMIC_MOVE);
+        return base;
+    }
+
+    @Override
+    public void close()
+    {
+        syncExec.shutdown();
+        synchronized (this)
+        {
+            flush();
+            closed = true;
+            consumers.clear();
+            active = null;
+        }
+    }
+
+    private synchronized void append(byte kind, Path file)
+    {
+        if (closed)
+        {
+            return;
+        }
+        final EventFrame frame = new EventFrame(kind, sequence + 1, file);
+        try
+        {
+            // в конце сегмента остается нулевая длина - признак конца данных
+            if (active.remaining() < recordSize(frame) + 4)
+            {
+                roll();
+            }
+            write(active, frame, crc);
+        }
+        catch (IOException e)
+        {
+            logger.error("Ошибка записи в журнал " + directory, e);
+            return;
+        }
+        sequence = frame.sequence;
+        for (Consumer c : consumers.values())
+        {
+            // отставший подписчик догоняет журнал сам, см. catchUp
+            if (!c.behind)
+            {
+                deliver(c, frame);
+            }
+        }
+        if (++unsynced >= syncEvery)
+        {
+            flush();
+        }
+    }
+
+    private void roll() throws IOException
+    {
+        forceActive();
+        sealed.put(parseBase(activeFile), activeFile);
+        openActive(segmentFile(sequence + 1));
+        if (sealed.size() > compactThreshold)
+        {
+            syncExec.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        compact();
+                    }
+                    catch (IOException e)
+                    {
+                        logger.error("Ошибка сжатия журнала " + directory, e);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Восстановление после перезапуска: последний сегмент становится активным,
+     * запись продолжается после последнего целого события.
+     */
+    private void recover() throws IOException
+    {
+        final TreeMap<Long, Path> segments = new TreeMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + SEGMENT_SUFFIX))
+        {
+            for (Path file : stream)
+            {
+                segments.put(parseBase(file), file);
+            }
+        }
+        // незафиксированное сжатие: старые сегменты целы
+        Files.deleteIfExists(directory.resolve(COMPACT_TMP));
+        // зафиксированное сжатие: довести замену сегментов до конца
+        final List<Path> done = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "compact.*" + COMPACT_DONE_SUFFIX))
+        {
+            for (Path file : stream)
+            {
+                done.add(file);
+            }
+        }
+        Collections.sort(done);
+        for (Path file : done)
+        {
+            final Long base = completeCompaction(file, segments);
+            if (base != null)
+            {
+                segments.put(base, segmentFile(base));
+            }
+        }
+
+        if (segments.isEmpty())
+        {
+            sequence = 0;
+            openActive(segmentFile(1));
+            return;
+        }
+        final Map.Entry<Long, Path> last = segments.pollLastEntry();
+        sealed.putAll(segments);
+        openActive(last.getValue());
+        final List<EventFrame> frames = scan(active, crc);
+        sequence = frames.isEmpty() ? last.getKey() - 1 : frames.get(frames.size() - 1).sequence;
+        // затереть недописанную запись
+        for (int i = active.position(); i < active.limit(); i++)
+        {
+            active.put(i, (byte) 0);
+        }
+    }
+
+    private void openActive(Path file) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE))
+        {
+            active = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(segmentSize, channel.size()));
+        }
+        activeFile = file;
+    }
+
+    private void forceActive()
+    {
+        active.force();
+        unsynced = 0;
+    }
+
+    private void commitDelivered(Consumer c) throws IOException
+    {
+        if (c.delivered > c.committed)
+        {
+            commit(c.name, c.delivered);
+        }
+    }
+
+    /**
+     * Доставить событие подписчику. После исключения номер подписчика больше не двигается,
+     * а повтор откладывается на удваивающуюся паузу.
+     */
+    private boolean deliver(Consumer c, EventFrame frame)
+    {
+        try
+        {
+            frame.deliver(c.listener);
+            c.delivered = frame.sequence;
+            c.attempts = 0;
+            return true;
+        }
+        catch (RuntimeException e)
+        {
+            c.behind = true;
+            c.attempts++;
+            final long delay = Math.min(MAX_RETRY_DELAY, MIN_RETRY_DELAY << Math.min(c.attempts - 1, 20));
+            c.retryAt = System.nanoTime() + delay;
+            if (c.attempts == 1)
+            {
+                logger.error("Ошибка подписчика " + c.name + " на событии " + frame.sequence, e);
+            }
+            else
+            {
+                logger.warn("Ошибка подписчика {} на событии {}, попытка {}, следующая через {} мс: {}",
+                        c.name, frame.sequence, c.attempts, TimeUnit.NANOSECONDS.toMillis(delay), e.toString());
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Догнать журнал до текущего события. Закрытые сегменты и уже записанная часть активного
+     * читаются и доставляются вне блокировки журнала, под блокировкой доставляется только то,
+     * что успело записаться за это время, после чего подписчик снова получает события из append.
+     */
+    private void catchUp(Consumer c) throws IOException
+    {
+        synchronized (c)
+        {
+            final CRC32 checksum = new CRC32();
+            boolean replaced;
+            do
+            {
+                final List<Path> files;
+                final ByteBuffer written;
+                synchronized (this)
+                {
+                    if (closed || consumers.get(c.name) != c || !c.behind)
+                    {
+                        return;
+                    }
+                    files = new ArrayList<>(segmentsAfter(c.delivered).values());
+                    written = active.duplicate();
+                    written.flip();
+                }
+                replaced = false;
+                try
+                {
+                    for (Path file : files)
+                    {
+                        if (!redeliver(c, readSegment(file, checksum)))
+                        {
+                            return;
+                        }
+                    }
+                    if (!redeliver(c, scan(written, checksum)))
+                    {
+                        return;
+                    }
+                }
+                catch (NoSuchFileException e)
+                {
+                    // сегмент заменен сжатием, перечитать список
+                    replaced = true;
+                }
+            }
+            while (replaced);
+            synchronized (this)
+            {
+                if (!closed && consumers.get(c.name) == c)
+                {
+                    redeliver(c);
+                }
+            }
+        }
+    }
+
+    /**
+     * Доставить подписчику все события после его номера {@code delivered}. Вызывается под
+     * блокировкой журнала, когда подписчик уже догнал журнал вне ее.
+     */
+    private void redeliver(Consumer c) throws IOException
+    {
+        c.behind = false;
+        for (Path file : segmentsAfter(c.delivered).values())
+        {
+            if (!redeliver(c, readSegment(file, crc)))
+            {
+                return;
+            }
+        }
+        redeliver(c, scanActive());
+    }
+
+    /**
+     * Закрытые сегменты, в которых могут быть события после {@code after}
+     */
+    private SortedMap<Long, Path> segmentsAfter(long after)
+    {
+        final Long first = sealed.floorKey(after + 1);
+        return first == null ? sealed : sealed.tailMap(first, true);
+    }
+
+    private boolean redeliver(Consumer c, List<EventFrame> frames)
+    {
+        for (EventFrame frame : frames)
+        {
+            if (frame.sequence > c.delivered && !deliver(c, frame))
+            {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<EventFrame> scanActive()
+    {
+        final ByteBuffer data = active.duplicate();
+        data.flip();
+        return scan(data, crc);
+    }
+
+    private List<EventFrame> readSegment(Path file, CRC32 checksum) throws IOException
+    {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ))
+        {
+            return scan(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), checksum);
+        }
+    }
+
+    /**
+     * Чтение записей до конца данных или до первой поврежденной записи.
+     * Позиция буфера остается после последней целой записи.
+     */
+    private static List<EventFrame> scan(ByteBuffer buffer, CRC32 crc)
+    {
+        final List<EventFrame> frames = new ArrayList<>();
+        long previous = 0;
+        while (buffer.remaining() >= HEADER + BODY)
+        {
+            final int start = buffer.position();
+            final int length = buffer.getInt();
+            final int checksum = buffer.getInt();
+            if (length < BODY || length > buffer.remaining())
+            {
+                buffer.position(start);
+                break;
+            }
+            final ByteBuffer body = buffer.slice();
+            body.limit(length);
+            crc.reset();
+            crc.update(body);
+            final long seq = buffer.getLong();
+            if ((int) crc.getValue() != checksum || seq <= previous)
+            {
+                buffer.position(start);
+                break;
+            }
+            final byte kind = buffer.get();
+            final byte[] encodedPath = new byte[length - BODY];
+            buffer.get(encodedPath);
+            frames.add(new EventFrame(kind, seq, Paths.get(new String(encodedPath, StandardCharsets.UTF_8)), encodedPath));
+            previous = seq;
+        }
+        return frames;
+    }
+
+    private static void write(ByteBuffer buffer, EventFrame frame, CRC32 crc)
+    {
+        final int start = buffer.position();
+        buffer.position(start + HEADER);
+        buffer.putLong(frame.sequence).put(frame.kind).put(frame.encodedPath);
+        final ByteBuffer body = buffer.duplicate();
+        body.position(start + HEADER);
+        body.limit(buffer.position());
+        crc.reset();
+        crc.update(body);
+        buffer.putInt(start + 4, (int) crc.getValue());
+        // длина пишется последней: запись без длины при чтении считается концом данных
+        buffer.putInt(start, BODY + frame.encodedPath.length);
+    }
+
+    private static long deliver(List<EventFrame> frames, long after, long last, FileChangeListener listener)
+    {
+        for (EventFrame frame : frames)
+        {
+            if (frame.sequence > after)
+            {
+                frame.deliver(listener);
+                last = frame.sequence;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Потеря событий в папке не вытесняется событием самой папки (и наоборот),
+     * поэтому они сжимаются раздельно
+     */
+    private static Object compactionKey(EventFrame frame)
+    {
+        return frame.kind == EventFrame.OVERFLOW ? Arrays.asList(EventFrame.OVERFLOW, frame.path) : frame.path;
+    }
+
+    private static int recordSize(EventFrame frame)
+    {
+        return HEADER + BODY + frame.encodedPath.length;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            channel.write(buffer);
+        }
+    }
+
+    private Path segmentFile(long base)
+    {
+        return directory.resolve(String.format("%020d%s", base, SEGMENT_SUFFIX));
+    }
+
+    private static long parseBase(Path file)
+    {
+        final String name = file.getFileName().toString();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    private Path offsetFile(String consumer)
+    {
+        if (!consumer.matches("[A-Za-z0-9_.-]+"))
+        {
+            throw new IllegalArgumentException("Invalid consumer name: " + consumer);
+        }
+        return directory.resolve(consumer + OFFSET_SUFFIX);
+    }
+
+    private void checkOpen()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("Journal is closed: " + directory);
+        }
+    }
+
+    private static class Consumer
+    {
+        private final String name;
+        private final FileChangeListener listener;
+        private final boolean autoCommit;
+        private long committed;
+        private volatile long delivered;
+        /**
+         * События из append не доставляются: подписчик только что подключился
+         * или его слушатель бросил исключение на событии delivered + 1
+         */
+        private volatile boolean behind = true;
+        /**
+         * Неудачных попыток доставки подряд и время следующей, {@link System#nanoTime()}
+         */
+        private int attempts;
+        private volatile long retryAt;
+
+        private Consumer(String name, FileChangeListener listener, long committed, boolean autoCommit)
+        {
+            this.name = name;
+            this.listener = listener;
+            this.committed = committed;
+            this.delivered = committed;
+            this.autoCommit = autoCommit;
+        }
+    }
+}
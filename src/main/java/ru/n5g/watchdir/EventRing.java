@@ -0,0 +1,169 @@
+package ru.n5g.watchdir;
+
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-producer / single-consumer ring of reusable event records.
+ * Slots are allocated once; the watcher thread fills them in place and the
+ * dispatcher thread clears them after the listeners have been called, so
+ * steady-state traffic through the ring does not allocate.
+ * <p>
+ * The producer never waits: when the ring is full, events go to an unbounded
+ * spill queue (allocating one record each) until the consumer has drained it.
+ * A watcher that stopped draining the OS would make the OS drop events instead.
+ */
+final class EventRing
+{
+
+	private final Event[] slots;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+	/**
+	 * Events that did not fit into the ring. All of them are newer than every
+	 * event in the ring: the producer keeps spilling while this is not empty.
+	 */
+	private final ConcurrentLinkedQueue<Event> spill = new ConcurrentLinkedQueue<>();
+	private final AtomicLong spilled = new AtomicLong();
+	private volatile Thread consumer;
+	/**
+	 * Consumer side only: the event returned by the last poll came from the spill queue.
+	 */
+	private boolean polledSpill;
+
+	EventRing(int capacity) {
+		if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+		}
+		slots = new Event[capacity];
+		for (int i = 0; i < capacity; i++) {
+			slots[i] = new Event();
+		}
+		mask = capacity - 1;
+	}
+
+	int capacity() {
+		return slots.length;
+	}
+
+	int size() {
+		return (int) (tail.get() - head.get()) + spill.size();
+	}
+
+	boolean isEmpty() {
+		return head.get() == tail.get() && spill.isEmpty();
+	}
+
+	/**
+	 * Total number of events that went through the spill queue.
+	 */
+	long spilledCount() {
+		return spilled.get();
+	}
+
+	/**
+	 * Adds an event without waiting. Producer thread only.
+	 */
+	void put(FileChangeMonitor.Directory directory, WatchEvent.Kind<?> kind, Path fileName) {
+		final long t = tail.get();
+		if (spill.isEmpty() && t - head.get() < slots.length) {
+			slots[(int) t & mask].set(directory, kind, fileName);
+			tail.set(t + 1);
+		}
+		else {
+			final Event e = new Event();
+			e.set(directory, kind, fileName);
+			spill.add(e);
+			spilled.incrementAndGet();
+		}
+		final Thread c = consumer;
+		if (c != null) {
+			LockSupport.unpark(c);
+		}
+	}
+
+	/**
+	 * Returns the oldest event or {@code null} if there is none.
+	 * A non-null result must be followed by {@link #release()}.
+	 */
+	Event poll() {
+		final long h = head.get();
+		if (h != tail.get()) {
+			polledSpill = false;
+			return slots[(int) h & mask];
+		}
+		final Event e = spill.peek();
+		polledSpill = e != null;
+		return e;
+	}
+
+	/**
+	 * Returns the oldest event, waiting while there is none.
+	 * Must be followed by {@link #release()}.
+	 */
+	Event take() throws InterruptedException {
+		Event event;
+		while ((event = poll()) == null) {
+			consumer = Thread.currentThread();
+			if (head.get() == tail.get() && spill.isEmpty()) {
+				LockSupport.park(this);
+			}
+			consumer = null;
+			if (Thread.interrupted()) {
+				throw new InterruptedException();
+			}
+		}
+		return event;
+	}
+
+	/**
+	 * Drops the event returned by the last {@link #poll()} or {@link #take()}.
+	 */
+	void release() {
+		if (polledSpill) {
+			spill.poll();
+			polledSpill = false;
+			return;
+		}
+		final long h = head.get();
+		slots[(int) h & mask].clear();
+		head.set(h + 1);
+	}
+
+	/**
+	 * Registers the thread that should be woken on {@link #put} when it
+	 * waits on several rings at once instead of calling {@link #take()}.
+	 */
+	void setConsumer(Thread thread) {
+		consumer = thread;
+	}
+
+	/**
+	 * Mutable event record. The file name is kept relative to the watched
+	 * directory; the absolute path is resolved only when there is a listener
+	 * to deliver it to.
+	 */
+	static final class Event {
+		FileChangeMonitor.Directory directory;
+		WatchEvent.Kind<?> kind;
+		Path fileName;
+		long enqueued;
+
+		void set(FileChangeMonitor.Directory directory, WatchEvent.Kind<?> kind, Path fileName) {
+			this.directory = directory;
+			this.kind = kind;
+			this.fileName = fileName;
+			this.enqueued = System.nanoTime();
+		}
+
+		void clear() {
+			directory = null;
+			kind = null;
+			fileName = null;
+		}
+	}
+}
@@ -0,0 +1,455 @@
+package ru.n5g.watchdir;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Демон, который один раз регистрирует папки в {@link FileChangeMonitor} и раздает события
+ * другим процессам через Unix domain socket.
+ * <p/>
+ * Каждому событию присваивается последовательный номер. Последние события хранятся в памяти,
+ * поэтому переподключившийся {@link RemoteWatchDir} получает пропущенные события начиная
+ * с последнего полученного номера.
+ * <p/>
+ * Номера действуют в пределах эпохи - случайного идентификатора экземпляра сервера.
+ * Если продолжить с номера клиента нельзя (сервер перезапущен или события уже вытеснены
+ * из backlog), клиент получает {@link FileChangeListener#overflow(Path)} по своим путям.
+ */
+public class EventStreamServer implements FileChangeListener
+{
+    public static final int DEFAULT_BACKLOG = 65536;
+    /**
+     * Интервал служебных кадров при отсутствии событий, мс. Запись в разорванное соединение
+     * завершает поток подписчика, даже если события для него не приходят.
+     */
+    private static final long HEARTBEAT_INTERVAL = 1000;
+    private static final EventFrame HEARTBEAT = new EventFrame(EventFrame.HEARTBEAT, 0, Paths.get(""));
+
+    private final Path socketFile;
+    private final WatchDir watchDir;
+    private final long epoch = newEpoch();
+    /**
+     * Наблюдаемые папки, по ним сообщается о потере событий подписчикам без префиксов
+     */
+    private final List<Path> roots = new CopyOnWriteArrayList<>();
+    /**
+     * Последние события для переподключения подписчиков
+     */
+    private final ArrayDeque<EventFrame> backlog;
+    private final int backlogSize;
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private long sequence = 0;
+
+    private ServerSocketChannel serverChannel;
+    private Thread acceptThread;
+
+    private Logger logger = LoggerFactory.getLogger(getClass().getName());
+
+    public EventStreamServer(Path socketFile, int backlogSize)
+    {
+        if (backlogSize <= 0)
+        {
+            throw new IllegalArgumentException("backlogSize must be positive: " + backlogSize);
+        }
+        this.socketFile = socketFile;
+        this.backlogSize = backlogSize;
+        this.backlog = new ArrayDeque<>(backlogSize);
+        this.watchDir = new WatchDir(this, true);
+    }
+
+    public EventStreamServer(Path socketFile)
+    {
+        this(socketFile, DEFAULT_BACKLOG);
+    }
+
+    private static long newEpoch()
+    {
+        final SecureRandom random = new SecureRandom();
+        long epoch;
+        do
+        {
+            epoch = random.nextLong();
+        }
+        while (epoch == 0);
+        return epoch;
+    }
+
+    public void addPath(Path path)
+    {
+        addPath(path, Priority.NORMAL);
+    }
+
+    public void addPath(String path)
+    {
+        addPath(Paths.get(path));
+    }
+
+    public void addPath(Path path, Priority priority)
+    {
+        roots.add(realPath(path));
+        watchDir.addPath(path, priority);
+    }
+
+    /**
+     * Путь в том виде, в каком он приходит в событиях: {@link FileChangeMonitor} регистрирует
+     * папки по {@link Path#toRealPath}, поэтому префикс через символическую ссылку иначе
+     * ничего бы не совпадало. Несуществующий путь только нормализуется.
+     */
+    static Path realPath(Path path)
+    {
+        try
+        {
+            return path.toRealPath();
+        }
+        catch (IOException e)
+        {
+            return path.toAbsolutePath().normalize();
+        }
+    }
+
+    public synchronized void start() throws IOException
+    {
+        if (serverChannel != null)
+        {
+            return;
+        }
+        Files.deleteIfExists(socketFile);
+        serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        serverChannel.bind(UnixDomainSocketAddress.of(socketFile));
+        acceptThread = new Thread(new AcceptTask(serverChannel), "watchdir-stream-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        watchDir.start();
+        logger.debug("Раздача событий через {} запущена", socketFile);
+    }
+
+    public synchronized void stop()
+    {
+        if (serverChannel == null)
+        {
+            return;
+        }
+        watchDir.stop();
+        try
+        {
+            serverChannel.close();
+            Files.deleteIfExists(socketFile);
+        }
+        catch (IOException e)
+        {
+            logger.error("Ошибка закрытия сокета " + socketFile, e);
+        }
+        serverChannel = null;
+        for (Subscriber subscriber : subscribers)
+        {
+            subscriber.close();
+        }
+    }
+
+    /**
+     * Номер последнего принятого события
+     */
+    public synchronized long getSequence()
+    {
+        return sequence;
+    }
+
+    /**
+     * Идентификатор экземпляра сервера, в пределах которого действуют номера событий
+     */
+    public long getEpoch()
+    {
+        return epoch;
+    }
+
+    public int getSubscriberCount()
+    {
+        int count = 0;
+        for (Subscriber subscriber : subscribers)
+        {
+            if (subscriber.subscribed)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public void fileModified(Path file)
+    {
+        publish(EventFrame.MODIFIED, file);
+    }
+
+    @Override
+    public void fileCreated(Path file)
+    {
+        publish(EventFrame.CREATED, file);
+    }
+
+    @Override
+    public void fileDeleted(Path file)
+    {
+        publish(EventFrame.DELETED, file);
+    }
+
+    @Override
+    public void overflow(Path directory)
+    {
+        publish(EventFrame.OVERFLOW, directory);
+    }
+
+    private synchronized void publish(byte kind, Path file)
+    {
+        final EventFrame frame = new EventFrame(kind, ++sequence, file);
+        if (backlog.size() == backlogSize)
+        {
+            backlog.pollFirst();
+        }
+        backlog.addLast(frame);
+        for (Subscriber subscriber : subscribers)
+        {
+            if (subscriber.subscribed)
+            {
+                subscriber.offer(frame);
+            }
+        }
+    }
+
+    /**
+     * Регистрация подписчика. Под той же блокировкой, что и {@link #publish},
+     * поэтому между событиями из backlog и новыми событиями нет ни пропусков, ни повторов.
+     */
+    private synchronized void subscribe(Subscriber subscriber, EventFrame.Subscription subscription)
+    {
+        subscriber.prefixes = subscription.prefixes;
+        subscriber.offer(new EventFrame(EventFrame.EPOCH, epoch, Paths.get("")));
+        final long lastSeen = subscription.lastSeen;
+        if (lastSeen >= 0)
+        {
+            if (subscription.epoch != epoch || lastSeen > sequence)
+            {
+                // номер из другого экземпляра сервера: продолжить нельзя, только новые события
+                resync(subscriber, EventFrame.RESET, sequence);
+            }
+            else if (lastSeen < sequence)
+            {
+                final long first = backlog.peekFirst().sequence;
+                if (lastSeen + 1 < first)
+                {
+                    resync(subscriber, EventFrame.GAP, first - 1);
+                }
+                for (EventFrame frame : backlog)
+                {
+                    if (frame.sequence > lastSeen)
+                    {
+                        subscriber.offer(frame);
+                    }
+                }
+            }
+        }
+        subscriber.subscribed = true;
+    }
+
+    private void resync(Subscriber subscriber, byte kind, long position)
+    {
+        List<Path> paths = subscriber.prefixes.isEmpty() ? roots : subscriber.prefixes;
+        if (paths.isEmpty())
+        {
+            paths = Collections.singletonList(socketFile.toAbsolutePath().getRoot());
+        }
+        for (Path path : paths)
+        {
+            subscriber.offer(new EventFrame(kind, position, path));
+        }
+    }
+
+    private class AcceptTask implements Runnable
+    {
+        private final ServerSocketChannel channel;
+
+        private AcceptTask(ServerSocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        @Override
+        public void run()
+        {
+            while (channel.isOpen())
+            {
+                try
+                {
+                    final Subscriber subscriber = new Subscriber(channel.accept());
+                    subscribers.add(subscriber);
+                    final Thread thread = new Thread(subscriber, "watchdir-stream-subscriber");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+                catch (IOException e)
+                {
+                    if (channel.isOpen())
+                    {
+                        logger.error("Ошибка подключения подписчика", e);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Подключенный процесс. События пишутся отдельным потоком из ограниченной очереди;
+     * если подписчик не успевает читать, соединение закрывается, и он переподключается
+     * с последнего полученного номера. Закрытие прерывает поток записи.
+     */
+    private class Subscriber implements Runnable
+    {
+        private final SocketChannel channel;
+        private final BlockingQueue<EventFrame> queue = new ArrayBlockingQueue<>(backlogSize + 1024);
+        private volatile List<Path> prefixes = Collections.emptyList();
+        /**
+         * События до подписки не отправляются: backlog и новые события передает {@link #subscribe}
+         */
+        private volatile boolean subscribed = false;
+        private volatile boolean closed = false;
+        private volatile Thread writer;
+
+        private Subscriber(SocketChannel channel)
+        {
+            this.channel = channel;
+        }
+
+        private void offer(EventFrame frame)
+        {
+            if (closed || !frame.isControl() && !matches(frame))
+            {
+                return;
+            }
+            if (!queue.offer(frame))
+            {
+                logger.debug("Подписчик не успевает читать события, отключение");
+                close();
+            }
+        }
+
+        private boolean matches(EventFrame frame)
+        {
+            final List<Path> current = prefixes;
+            if (current.isEmpty())
+            {
+                return true;
+            }
+            final Path path = frame.path;
+            for (Path prefix : current)
+            {
+                // потеря событий папки касается и префиксов внутри нее
+                if (path.startsWith(prefix) || frame.kind == EventFrame.OVERFLOW && prefix.startsWith(path))
+                {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void close()
+        {
+            closed = true;
+            subscribers.remove(this);
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ignored)
+            {
+            }
+            final Thread thread = writer;
+            if (thread != null && thread != Thread.currentThread())
+            {
+                thread.interrupt();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            writer = Thread.currentThread();
+            try
+            {
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+                final EventFrame.Subscription subscription = EventFrame.readSubscribe(in);
+                subscribe(this, subscription);
+
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+                while (!closed)
+                {
+                    EventFrame frame = queue.poll(HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+                    if (frame == null)
+                    {
+                        frame = HEARTBEAT;
+                    }
+                    do
+                    {
+                        frame.writeTo(out);
+                    }
+                    while ((frame = queue.poll()) != null);
+                    out.flush();
+                }
+            }
+            catch (IOException e)
+            {
+                logger.debug("Подписчик отключился: {}", e.getMessage());
+            }
+            catch (InterruptedException ignored)
+            {
+            }
+            finally
+            {
+                close();
+            }
+        }
+    }
+
+    /**
+     * Запуск в режиме демона: {@code EventStreamServer <socket> <path> [<path> ...]}
+     */
+    public static void main(String[] args) throws Exception
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Usage: EventStreamServer <socket> <path> [<path> ...]");
+            System.exit(1);
+        }
+        final EventStreamServer server = new EventStreamServer(Paths.get(args[0]));
+        for (int i = 1; i < args.length; i++)
+        {
+            server.addPath(args[i]);
+        }
+        server.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                server.stop();
+            }
+        }));
+    }
+}
@@ -11,5 +11,12 @@ public interface FileChangeListener
 	public void fileCreated(Path file);
 	
 	public void fileDeleted(Path file);
+
+	/**
+	 * Events in the directory were lost because the OS event queue overflowed.
+	 * Listeners that keep state should rescan the directory. Ignored by default.
+	 */
+	public default void overflow(Path directory) {
+	}
 	
 }
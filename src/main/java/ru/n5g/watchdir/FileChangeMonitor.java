@@ -1,44 +1,90 @@
 package ru.n5g.watchdir;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import java.io.IOException;
 import java.nio.file.*;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.concurrent.*;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import static java.nio.file.StandardWatchEventKinds.*;
 
+/**
+ * Events are delivered by two threads: one serves REALTIME directories only, the other serves
+ * the remaining classes in the order chosen by {@link PriorityScheduler}. A slow listener of a
+ * lower class therefore cannot delay a REALTIME event; in exchange a listener registered on
+ * directories of different classes may be called from both threads concurrently.
+ */
 public class FileChangeMonitor
 {
 
-	private static final WatchService watcher = newWatchService();
+	private static final WatchBackend backend = newBackend();
 	private static final ExecutorService listenerExec = Executors.newSingleThreadExecutor();
-	private static final ExecutorService dispatcherExec = Executors.newCachedThreadPool();
+	private static final ExecutorService realtimeExec = Executors.newSingleThreadExecutor();
+	private static final ExecutorService dispatcherExec = Executors.newSingleThreadExecutor();
 	private static final ConcurrentMap<Path, Directory> register = new ConcurrentHashMap<>();
+	private static final EventRing[] events = newRings(Integer.getInteger("watchdir.ringSize", 4096));
+	private static final LatencyStats[] latency = newLatencyStats();
+	/**
+	 * A pending lower priority class is served after this many higher class events in a row
+	 * or once it has not been served for STARVATION_NANOS, see {@link PriorityScheduler}.
+	 */
+	private static final int STARVATION_LIMIT = Integer.getInteger("watchdir.starvationLimit", 64);
+	private static final long STARVATION_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("watchdir.starvationMillis", 50));
 	private static final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	private static final Logger logger = LoggerFactory.getLogger(FileChangeMonitor.class.getName());
+	/**
+	 * Set by the shutdown hook; the dispatcher stops only on this, never on a listener's interrupt
+	 */
+	private static volatile boolean shutdown;
+	private static final List<Thread> dispatchers = new CopyOnWriteArrayList<>();
 
 	static {
-		if (watcher == null) {
+		if (backend == null) {
 			throw new IllegalStateException("FileChangeMonitor could not be created!");
 		}
 		else {
 			final Thread watcherCloser = new Thread(new ShutDownTask());
 			Runtime.getRuntime().addShutdownHook(watcherCloser);
 			listenerExec.submit(new WatcherTask());
+			realtimeExec.submit(new DispatcherTask(Priority.REALTIME.ordinal(), Priority.REALTIME.ordinal() + 1));
+			dispatcherExec.submit(new DispatcherTask(Priority.REALTIME.ordinal() + 1, events.length));
 		}
 	}
 
-	private static WatchService newWatchService() {
+	private static WatchBackend newBackend() {
 		try {
-			return FileSystems.getDefault().newWatchService();
+			return WatchBackend.create();
 		} catch (IOException ex) {
 			return null;
 		}
 	}
 
-	private static Directory getDirectory(Path path, WatchKey key) throws IOException{
-		final Directory newDirectory = new Directory(key);
+	private static EventRing[] newRings(int capacity) {
+		final EventRing[] rings = new EventRing[Priority.values().length];
+		for (int i = 0; i < rings.length; i++) {
+			rings[i] = new EventRing(capacity);
+		}
+		return rings;
+	}
+
+	private static LatencyStats[] newLatencyStats() {
+		final LatencyStats[] stats = new LatencyStats[Priority.values().length];
+		for (int i = 0; i < stats.length; i++) {
+			stats[i] = new LatencyStats();
+		}
+		return stats;
+	}
+
+	private static Directory getDirectory(Path path, WatchKey key, Priority priority) throws IOException{
+		final Directory newDirectory = new Directory(path, key, priority);
 		final Directory oldDirectory = register.putIfAbsent(path, newDirectory);
 		if (oldDirectory == null) {
 			return newDirectory;
@@ -46,15 +92,54 @@ public class FileChangeMonitor
 		return oldDirectory;
 	}
 
+	static String getBackendName() {
+		return backend.name();
+	}
+
+	private static Directory directoryOf(WatchKey key) {
+		return directoryOf((Path) key.watchable());
+	}
+
+	static Directory directoryOf(Path directory) {
+		return register.get(directory);
+	}
+
+	/**
+	 * Called by the backend reader thread only: the rings have a single producer.
+	 * Never waits, so a slow listener cannot make the OS drop events.
+	 */
+	private static void enqueue(Directory directory, WatchEvent.Kind<?> kind, Path fileName) {
+		events[directory.priority.ordinal()].put(directory, kind, fileName);
+	}
+
+	/**
+	 * Delivery latency of events from directories of the given priority class.
+	 */
+	public static LatencyStats getLatencyStats(Priority priority) {
+		return latency[priority.ordinal()];
+	}
+
 	public static void register(FileChangeListener listener, Path file){
+		register(listener, file, Priority.NORMAL);
+	}
+
+	/**
+	 * A directory watched by several listeners gets the highest of their priorities.
+	 * Registering the same listener again replaces its priority, and the directory
+	 * priority is recomputed when listeners are unregistered. Events already queued
+	 * keep the class they were queued with, so across a change to or from REALTIME
+	 * they may be delivered out of order.
+	 */
+	public static void register(FileChangeListener listener, Path file, Priority priority){
 		try {
 		 	if (Files.isDirectory(file)){
 				final Path dirPath = file.toRealPath();
-				final WatchKey key = dirPath.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				final WatchKey key = backend.register(dirPath);
 				lock.readLock().lock();
 				try {
-					final Directory dir = getDirectory(dirPath, key);
+					final Directory dir = getDirectory(dirPath, key, priority);
 					dir.addDirectoryListener(listener);
+					dir.requestPriority(listener, priority);
 				}
 				finally {
 					lock.readLock().unlock();
@@ -63,12 +148,13 @@ public class FileChangeMonitor
 			else if (Files.isRegularFile(file)) {
 				final Path dirPath = file.getParent().toRealPath();
 				final Path filePath = file.getFileName();
-				final WatchKey key = dirPath.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+				final WatchKey key = backend.register(dirPath);
 
 				lock.readLock().lock();
 				try{
-					final Directory dir = getDirectory(dirPath, key);
+					final Directory dir = getDirectory(dirPath, key, priority);
 					dir.addFileListener(filePath, listener);
+					dir.requestPriority(listener, priority);
 				}
 				finally {
 					lock.readLock().unlock();
@@ -85,8 +171,8 @@ public class FileChangeMonitor
 		try {
 			for (Entry<Path, Directory> e : register.entrySet()){
 				final Directory directory = e.getValue();
-				for (Entry<Path, CopyOnWriteArrayList<FileChangeListener>> f : directory.registeredFiles.entrySet()){
-					final CopyOnWriteArrayList<FileChangeListener> l = f.getValue();
+				for (Entry<Path, Listeners> f : directory.registeredFiles.entrySet()){
+					final Listeners l = f.getValue();
 					if (l.remove(listener)){
 						if (l.isEmpty()){
 							directory.registeredFiles.remove(f.getKey());
@@ -98,6 +184,9 @@ public class FileChangeMonitor
 					register.remove(e.getKey());
 					directory.key.cancel();
 				}
+				else {
+					directory.releasePriority(listener);
+				}
 			}
 		}
 		finally {
@@ -118,6 +207,9 @@ public class FileChangeMonitor
 								register.remove(dirPath);
 								dir.key.cancel();
 							}
+							else {
+								dir.releasePriority(listener);
+							}
 						}
 					}
 				}
@@ -132,7 +224,7 @@ public class FileChangeMonitor
 				try {
 					final Directory dir = register.get(dirPath);
 					if (dir != null){
-						final CopyOnWriteArrayList<FileChangeListener> list = dir.registeredFiles.get(filePath);
+						final Listeners list = dir.registeredFiles.get(filePath);
 						if (list != null){
 							if (list.remove(listener)){
 								if (list.isEmpty()){
@@ -140,8 +232,10 @@ public class FileChangeMonitor
 									if (dir.registeredFiles.isEmpty() && dir.directoryListeners.isEmpty()){
 										register.remove(dirPath);
 										dir.key.cancel();
+										return;
 									}
 								}
+								dir.releasePriority(listener);
 							}
 						}
 					}
@@ -154,144 +248,281 @@ public class FileChangeMonitor
 		catch (IOException ex) {}
 	}
 
-	private static class Directory {
-		private final CopyOnWriteArrayList<FileChangeListener> directoryListeners;
-		private final ConcurrentMap<Path, CopyOnWriteArrayList<FileChangeListener>> registeredFiles;
+	static class Directory {
+		private final Listeners directoryListeners;
+		private final ConcurrentMap<Path, Listeners> registeredFiles;
+		private final Path path;
 		private final WatchKey key;
+		private volatile Priority priority;
+		/**
+		 * Priority requested by each listener of the directory, guarded by this
+		 */
+		private final Map<FileChangeListener, Priority> requested = new HashMap<>();
 
-		private Directory(WatchKey key) {
+		Directory(Path path, WatchKey key, Priority priority) {
+			this.path = path;
 			this.key = key;
-			directoryListeners = new CopyOnWriteArrayList<>();
+			this.priority = priority;
+			directoryListeners = new Listeners();
 			registeredFiles = new ConcurrentHashMap<>();
 		}
 
-		private CopyOnWriteArrayList<FileChangeListener> getFileListeners(Path file) {
-			final CopyOnWriteArrayList<FileChangeListener> newList = new CopyOnWriteArrayList<>();
-			final CopyOnWriteArrayList<FileChangeListener> oldList = registeredFiles.putIfAbsent(file, newList);
+		private Listeners getFileListeners(Path file) {
+			final Listeners newList = new Listeners();
+			final Listeners oldList = registeredFiles.putIfAbsent(file, newList);
 			if (oldList == null) {
 				return newList;
 			}
 			return oldList;
 		}
 
-		private void addFileListener(Path file, FileChangeListener listener) {
-			final CopyOnWriteArrayList<FileChangeListener> fileListeners = getFileListeners(file);
+		void addFileListener(Path file, FileChangeListener listener) {
+			final Listeners fileListeners = getFileListeners(file);
 			fileListeners.addIfAbsent(listener);
 		}
 
-		private void addDirectoryListener(FileChangeListener listener) {
+		void addDirectoryListener(FileChangeListener listener) {
 			directoryListeners.addIfAbsent(listener);
 		}
 
-		private void eventCreate(Path directoryPath, Path fileName) throws IOException{
-			final Path file = directoryPath.resolve(fileName);
-			for (FileChangeListener l : directoryListeners){
-				l.fileCreated(file);
+		Priority getPriority() {
+			return priority;
+		}
+
+		private synchronized void requestPriority(FileChangeListener listener, Priority priority) {
+			requested.put(listener, priority);
+			recomputePriority();
+		}
+
+		/**
+		 * Drops the listener's priority once it no longer watches anything in the directory.
+		 */
+		private synchronized void releasePriority(FileChangeListener listener) {
+			if (directoryListeners.contains(listener)) {
+				return;
 			}
-			final CopyOnWriteArrayList<FileChangeListener> fileListeners = registeredFiles.get(fileName);
-			if (fileListeners != null) {
-				for (FileChangeListener l : fileListeners) {
-					l.fileCreated(file);
+			for (Listeners files : registeredFiles.values()) {
+				if (files.contains(listener)) {
+					return;
 				}
 			}
+			if (requested.remove(listener) != null) {
+				recomputePriority();
+			}
 		}
 
-		private void eventModify(Path directoryPath, Path fileName) throws IOException {
-			final Path file = directoryPath.resolve(fileName);
-			for (FileChangeListener l : directoryListeners){
-				l.fileModified(file);
+		private void recomputePriority() {
+			Priority highest = null;
+			for (Priority p : requested.values()) {
+				if (highest == null || p.compareTo(highest) < 0) {
+					highest = p;
+				}
+			}
+			if (highest != null) {
+				priority = highest;
+			}
+		}
+
+		/**
+		 * Delivers one event. Does not allocate when nobody listens; otherwise the only
+		 * allocation is resolving the absolute path handed to the listeners.
+		 */
+		void dispatch(WatchEvent.Kind<?> kind, Path fileName) {
+			if (kind == OVERFLOW) {
+				dispatchOverflow();
+				return;
+			}
+			final FileChangeListener[] dirListeners = directoryListeners.snapshot;
+			final Listeners files = registeredFiles.isEmpty() ? null : registeredFiles.get(fileName);
+			final FileChangeListener[] fileListeners = files == null ? Listeners.NONE : files.snapshot;
+			if (dirListeners.length == 0 && fileListeners.length == 0) {
+				return;
 			}
-			final CopyOnWriteArrayList<FileChangeListener> fileListeners = registeredFiles.get(fileName);
-			if (fileListeners != null) {
-				for (FileChangeListener l : fileListeners) {
-					l.fileModified(file);
+			final Path file = path.resolve(fileName);
+			if (kind == ENTRY_CREATE){
+				for (int i = 0; i < dirListeners.length; i++) {
+					dirListeners[i].fileCreated(file);
+				}
+				for (int i = 0; i < fileListeners.length; i++) {
+					fileListeners[i].fileCreated(file);
+				}
+			}
+			else if (kind == ENTRY_MODIFY) {
+				for (int i = 0; i < dirListeners.length; i++) {
+					dirListeners[i].fileModified(file);
+				}
+				for (int i = 0; i < fileListeners.length; i++) {
+					fileListeners[i].fileModified(file);
+				}
+			}
+			else if (kind == ENTRY_DELETE) {
+				for (int i = 0; i < dirListeners.length; i++) {
+					dirListeners[i].fileDeleted(file);
+				}
+				for (int i = 0; i < fileListeners.length; i++) {
+					fileListeners[i].fileDeleted(file);
 				}
 			}
 		}
 
-		private void eventDelete(Path directoryPath, Path fileName) throws IOException {
-			final Path file = directoryPath.resolve(fileName);
-			for (FileChangeListener l : directoryListeners){
-				l.fileDeleted(file);
+		private void dispatchOverflow() {
+			for (FileChangeListener l : directoryListeners.snapshot) {
+				l.overflow(path);
 			}
-			final CopyOnWriteArrayList<FileChangeListener> fileListeners = registeredFiles.get(fileName);
-			if (fileListeners != null) {
-				for (FileChangeListener l : fileListeners) {
-					l.fileDeleted(file);
+			for (Listeners files : registeredFiles.values()) {
+				for (FileChangeListener l : files.snapshot) {
+					l.overflow(path);
 				}
 			}
 		}
 	}
 
+	/**
+	 * Copy-on-write listener list backed by a plain array, so the dispatcher
+	 * can read a snapshot and walk it by index without allocating an iterator.
+	 */
+	private static class Listeners {
+		private static final FileChangeListener[] NONE = new FileChangeListener[0];
+
+		private volatile FileChangeListener[] snapshot = NONE;
+
+		private synchronized boolean addIfAbsent(FileChangeListener listener) {
+			final FileChangeListener[] current = snapshot;
+			for (FileChangeListener l : current) {
+				if (l.equals(listener)) {
+					return false;
+				}
+			}
+			final FileChangeListener[] next = Arrays.copyOf(current, current.length + 1);
+			next[current.length] = listener;
+			snapshot = next;
+			return true;
+		}
+
+		private synchronized boolean remove(FileChangeListener listener) {
+			final FileChangeListener[] current = snapshot;
+			for (int i = 0; i < current.length; i++) {
+				if (current[i].equals(listener)) {
+					if (current.length == 1) {
+						snapshot = NONE;
+					}
+					else {
+						final FileChangeListener[] next = new FileChangeListener[current.length - 1];
+						System.arraycopy(current, 0, next, 0, i);
+						System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+						snapshot = next;
+					}
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private boolean isEmpty() {
+			return snapshot.length == 0;
+		}
+
+		private boolean contains(FileChangeListener listener) {
+			for (FileChangeListener l : snapshot) {
+				if (l.equals(listener)) {
+					return true;
+				}
+			}
+			return false;
+		}
+	}
+
 	private static class ShutDownTask implements Runnable {
 		@Override
 		public void run() {
+			shutdown = true;
+			for (Thread d : dispatchers) {
+				LockSupport.unpark(d);
+			}
 			try {
-				watcher.close();
+				backend.close();
 			} catch (IOException ex) {
 
 			}
 		}
 	}
 
-	private static class WatcherTask implements Runnable {
+	private static class WatcherTask implements Runnable, WatchBackend.Sink {
 
 		@Override
 		public void run() {
-			while (true) {
-				final WatchKey key;
-				try {
-					key = watcher.take();
-				} catch (InterruptedException x) {
-					return;
-				}
-				final List<WatchEvent<?>> events = key.pollEvents();
-				try {
-					final Directory directory = register.get(((Path)key.watchable()).toRealPath());
-					if (directory != null) {
-						dispatcherExec.submit(new DispatcherTask(directory, events));
-					}
-				}
-				catch (IOException iox){
-					// path is gone!
+			try {
+				backend.run(this);
+			} catch (InterruptedException x) {
+				// monitor is shutting down
+			}
+		}
+
+		@Override
+		public void event(WatchKey key, WatchEvent.Kind<?> kind, Path fileName) {
+			if (key == null) {
+				// the OS lost events without saying for which directory: report all of them
+				for (Directory directory : register.values()) {
+					enqueue(directory, OVERFLOW, null);
 				}
-				key.reset();
+				return;
+			}
+			final Directory directory = directoryOf(key);
+			if (directory != null) {
+				enqueue(directory, kind, fileName);
 			}
 		}
 	}
 
 
+	/**
+	 * Drains the rings of priority classes [first, last) in the order chosen by {@link PriorityScheduler}.
+	 * Each class has a single dispatcher thread for the whole JVM, so nothing a listener does
+	 * may end it: failures are logged, and an interrupt set by a listener is cleared.
+	 */
 	private static class DispatcherTask implements Runnable {
 
-		private final Directory directory;
-		private final List<WatchEvent<?>> events;
+		private final int first;
+		private final EventRing[] rings;
+		private final PriorityScheduler scheduler;
 
-		private DispatcherTask(Directory directory, List<WatchEvent<?>> events) {
-			this.directory = directory;
-			this.events = events;
+		DispatcherTask(int first, int last) {
+			this.first = first;
+			rings = Arrays.copyOfRange(events, first, last);
+			scheduler = new PriorityScheduler(rings, STARVATION_LIMIT, STARVATION_NANOS);
 		}
 
-		@SuppressWarnings("unchecked")
 		@Override
 		public void run() {
-			try {
-				final Path directoryPath = ((Path)directory.key.watchable()).toRealPath();
-				for (WatchEvent<?> e : events) {
-					try {
-						final WatchEvent.Kind<?> kind = e.kind();
-						if (kind == ENTRY_CREATE){
-							directory.eventCreate(directoryPath, ((WatchEvent<Path>)e).context());
-						}
-						else if (kind == ENTRY_MODIFY) {
-							directory.eventModify(directoryPath, ((WatchEvent<Path>)e).context());
-						}
-						else if (kind == ENTRY_DELETE) {
-							directory.eventDelete(directoryPath, ((WatchEvent<Path>)e).context());
-						}
-					}
-					catch (IOException ex) {}
+			final Thread self = Thread.currentThread();
+			dispatchers.add(self);
+			for (EventRing ring : rings) {
+				ring.setConsumer(self);
+			}
+			while (!shutdown) {
+				final int selected = scheduler.select(System.nanoTime());
+				if (selected < 0) {
+					LockSupport.park(this);
+					Thread.interrupted();
+					continue;
+				}
+				final EventRing ring = rings[selected];
+				final EventRing.Event e = ring.poll();
+				latency[first + selected].record(System.nanoTime() - e.enqueued);
+				try {
+					e.directory.dispatch(e.kind, e.fileName);
 				}
-			} catch (IOException ex) {}
+				catch (VirtualMachineError ex) {
+					throw ex;
+				}
+				catch (Throwable ex) {
+					logger.error("Listener failed on " + e.kind + " " + e.fileName + " in " + e.directory.path, ex);
+				}
+				finally {
+					ring.release();
+					Thread.interrupted();
+				}
+			}
 		}
 	}
 
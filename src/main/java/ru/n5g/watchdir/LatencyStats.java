@@ -0,0 +1,63 @@
+package ru.n5g.watchdir;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Задержка доставки событий одного класса приоритета: от получения события из WatchService
+ * до начала вызова слушателей.
+ */
+public final class LatencyStats
+{
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    LatencyStats()
+    {
+    }
+
+    void record(long nanos)
+    {
+        count.incrementAndGet();
+        totalNanos.addAndGet(nanos);
+        if (nanos > maxNanos.get())
+        {
+            // значение пишет только поток доставки
+            maxNanos.set(nanos);
+        }
+    }
+
+    public long getCount()
+    {
+        return count.get();
+    }
+
+    public long getTotalNanos()
+    {
+        return totalNanos.get();
+    }
+
+    public long getMaxNanos()
+    {
+        return maxNanos.get();
+    }
+
+    public long getMeanNanos()
+    {
+        final long c = count.get();
+        return c == 0 ? 0 : totalNanos.get() / c;
+    }
+
+    public void reset()
+    {
+        count.set(0);
+        totalNanos.set(0);
+        maxNanos.set(0);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "LatencyStats{count=" + getCount() + ", meanNanos=" + getMeanNanos() + ", maxNanos=" + getMaxNanos() + '}';
+    }
+}
@@ -0,0 +1,23 @@
+package ru.n5g.watchdir;
+
+/**
+ * Класс приоритета папки для мониторинга. События папок с более высоким приоритетом
+ * доставляются первыми.
+ */
+public enum Priority
+{
+    /**
+     * Папки, на изменения в которых нужно реагировать немедленно (конфигурация).
+     * Их события доставляются отдельным потоком и не ждут слушателей других папок.
+     */
+    REALTIME,
+    /**
+     * Приоритет по умолчанию
+     */
+    NORMAL,
+    /**
+     * Папки с большим потоком событий (массовая загрузка). События доставляются,
+     * когда нет более срочных, но не откладываются бесконечно.
+     */
+    BULK
+}
@@ -0,0 +1,65 @@
+package ru.n5g.watchdir;
+
+import java.util.Arrays;
+
+/**
+ * Chooses the ring the dispatcher serves next: the highest non-empty priority class,
+ * except that a pending lower class gets one event through once it has been passed over
+ * {@code starvationLimit} times in a row or has not been served for {@code starvationNanos}.
+ * <p>
+ * The time limit runs from when the class was last served (or last seen empty), not from
+ * the age of its oldest event: a bulk backlog is always old, and judging by age would let
+ * it win over realtime events on every pick.
+ * Used by the dispatcher thread only.
+ */
+final class PriorityScheduler
+{
+
+	private final EventRing[] rings;
+	private final int starvationLimit;
+	private final long starvationNanos;
+	private final int[] passedOver;
+	private final long[] lastServed;
+
+	PriorityScheduler(EventRing[] rings, int starvationLimit, long starvationNanos) {
+		this.rings = rings;
+		this.starvationLimit = starvationLimit;
+		this.starvationNanos = starvationNanos;
+		passedOver = new int[rings.length];
+		lastServed = new long[rings.length];
+		Arrays.fill(lastServed, System.nanoTime());
+	}
+
+	/**
+	 * @param now {@link System#nanoTime()} of this pick
+	 * @return index of the ring to take one event from, or -1 if all rings are empty
+	 */
+	int select(long now) {
+		int selected = -1;
+		for (int i = 0; i < rings.length; i++) {
+			if (rings[i].isEmpty()) {
+				// nothing is waiting, so the class is not being starved
+				served(i, now);
+				continue;
+			}
+			if (selected < 0) {
+				selected = i;
+				continue;
+			}
+			if (passedOver[i] >= starvationLimit || now - lastServed[i] >= starvationNanos) {
+				served(i, now);
+				return i;
+			}
+			passedOver[i]++;
+		}
+		if (selected >= 0) {
+			served(selected, now);
+		}
+		return selected;
+	}
+
+	private void served(int i, long now) {
+		passedOver[i] = 0;
+		lastServed[i] = now;
+	}
+}
@@ -0,0 +1,230 @@
+package ru.n5g.watchdir;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Аналог {@link WatchDir}, который не регистрирует папки сам, а получает события
+ * от {@link EventStreamServer} другого процесса на этой же машине.
+ * <p/>
+ * Это не замена {@link WatchDir} один к одному: общего типа у них нет, и у клиента нет
+ * {@code addPath(Path, Priority)} - приоритет папок задается на сервере, клиент
+ * получает события в порядке их номеров.
+ * <p/>
+ * Добавленные пути работают как префиксы подписки. При обрыве соединения клиент
+ * переподключается и продолжает с последнего полученного номера события. Если продолжить
+ * нельзя (сервер перезапущен или события вытеснены из его backlog), слушатель получает
+ * {@link FileChangeListener#overflow(Path)} по каждому префиксу.
+ */
+public class RemoteWatchDir
+{
+    /**
+     * Пауза между попытками переподключения, мс
+     */
+    private static final long RECONNECT_DELAY = 500;
+
+    /**
+     * Слушатель, для оповещения об изменениях
+     */
+    private final FileChangeListener listener;
+    private final Path socketFile;
+    private final List<Path> pathList = new ArrayList<>();
+    /**
+     * Номер последнего полученного события, отрицательный - только новые события
+     */
+    private volatile long lastSequence = -1;
+    /**
+     * Эпоха сервера, к которой относится lastSequence, 0 - неизвестна
+     */
+    private volatile long epoch = 0;
+    private volatile boolean isRun = false;
+    private SocketChannel channel;
+    private volatile Thread readerThread;
+
+    private Logger logger = LoggerFactory.getLogger(getClass().getName());
+
+    public RemoteWatchDir(FileChangeListener listener, Path socketFile)
+    {
+        this.listener = listener;
+        this.socketFile = socketFile;
+    }
+
+    public RemoteWatchDir(FileChangeListener listener, String socketFile)
+    {
+        this(listener, Paths.get(socketFile));
+    }
+
+    public synchronized void start()
+    {
+        if (isRun)
+        {
+            return;
+        }
+        isRun = true;
+        readerThread = new Thread(new ReaderTask(), "watchdir-stream-client");
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    public synchronized void stop()
+    {
+        isRun = false;
+        closeChannel();
+        if (readerThread != null)
+        {
+            readerThread.interrupt();
+            readerThread = null;
+        }
+    }
+
+    /**
+     * Добавить префикс подписки. Пустой список - все события сервера.
+     * Существующий путь разрешается через символические ссылки, как пути событий сервера.
+     */
+    public synchronized void addPath(Path path)
+    {
+        pathList.add(EventStreamServer.realPath(path));
+        if (isRun)
+        {
+            // переподключение с новым набором префиксов, пропущенные события придут из backlog сервера
+            closeChannel();
+        }
+    }
+
+    public void addPath(String path)
+    {
+        addPath(Paths.get(path));
+    }
+
+    /**
+     * Номер последнего полученного события, его можно сохранить и передать в
+     * {@link #setLastSequence(long)} после перезапуска процесса
+     */
+    public long getLastSequence()
+    {
+        return lastSequence;
+    }
+
+    public void setLastSequence(long lastSequence)
+    {
+        this.lastSequence = lastSequence;
+    }
+
+    /**
+     * Эпоха сервера, в которой получен {@link #getLastSequence()}. Сохраняется вместе с номером:
+     * номер без эпохи сервер не может проверить и начинает с новых событий.
+     */
+    public long getEpoch()
+    {
+        return epoch;
+    }
+
+    public void setEpoch(long epoch)
+    {
+        this.epoch = epoch;
+    }
+
+    private synchronized SocketChannel connect() throws IOException
+    {
+        if (!isRun)
+        {
+            return null;
+        }
+        channel = SocketChannel.open(StandardProtocolFamily.UNIX);
+        try
+        {
+            channel.connect(UnixDomainSocketAddress.of(socketFile));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            EventFrame.writeSubscribe(out, epoch, lastSequence, pathList);
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            closeChannel();
+            throw e;
+        }
+        return channel;
+    }
+
+    private synchronized void closeChannel()
+    {
+        if (channel != null)
+        {
+            try
+            {
+                channel.close();
+            }
+            catch (IOException ignored)
+            {
+            }
+            channel = null;
+        }
+    }
+
+    private class ReaderTask implements Runnable
+    {
+        @Override
+        public void run()
+        {
+            while (isRun && readerThread == Thread.currentThread())
+            {
+                try
+                {
+                    final SocketChannel current = connect();
+                    if (current == null)
+                    {
+                        return;
+                    }
+                    final DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(current)));
+                    while (isRun)
+                    {
+                        final EventFrame frame = EventFrame.readFrom(in);
+                        switch (frame.kind)
+                        {
+                            case EventFrame.EPOCH:
+                                epoch = frame.sequence;
+                                break;
+                            case EventFrame.HEARTBEAT:
+                                break;
+                            case EventFrame.RESET:
+                                lastSequence = frame.sequence;
+                                frame.deliver(listener);
+                                break;
+                            case EventFrame.GAP:
+                                frame.deliver(listener);
+                                break;
+                            default:
+                                lastSequence = frame.sequence;
+                                frame.deliver(listener);
+                        }
+                    }
+                }
+                catch (IOException e)
+                {
+                    if (isRun)
+                    {
+                        logger.debug("Соединение с {} потеряно: {}", socketFile, e.getMessage());
+                    }
+                }
+                try
+                {
+                    Thread.sleep(RECONNECT_DELAY);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package ru.n5g.watchdir;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+
+/**
+ * Source of file system events for {@link FileChangeMonitor}. A backend hands out a
+ * {@link WatchKey} per registered directory and, on its single reader thread, feeds
+ * events into a {@link Sink}.
+ */
+abstract class WatchBackend implements Closeable
+{
+
+	/**
+	 * Loaded from the Java 22 part of the multi-release jar; absent on older runtimes.
+	 */
+	private static final String INOTIFY_BACKEND = "ru.n5g.watchdir.InotifyBackend";
+
+	/**
+	 * Picks the backend named by {@code -Dwatchdir.backend}:
+	 * <ul>
+	 * <li>{@code auto} (default) - native inotify on Linux when the runtime allows this code
+	 * native access, e.g. {@code --enable-native-access=ALL-UNNAMED} on JDK 22+, otherwise the JDK WatchService.
+	 * Without that flag the JVM would print a restricted method warning, so inotify is not chosen silently;</li>
+	 * <li>{@code inotify} - native inotify whenever it can be loaded, even if the JVM warns about native access;</li>
+	 * <li>{@code watchservice} - always the JDK WatchService.</li>
+	 * </ul>
+	 * If inotify cannot be loaded, the JDK WatchService is used.
+	 */
+	static WatchBackend create() throws IOException {
+		final String requested = System.getProperty("watchdir.backend", "auto");
+		final boolean inotify = "inotify".equals(requested) || "auto".equals(requested) && nativeAccessEnabled();
+		if (inotify && System.getProperty("os.name", "").startsWith("Linux")) {
+			try {
+				return (WatchBackend) Class.forName(INOTIFY_BACKEND).getDeclaredConstructor().newInstance();
+			}
+			catch (ReflectiveOperationException | LinkageError | RuntimeException ex) {
+				// fall back to the WatchService backend
+			}
+		}
+		return new WatchServiceBackend();
+	}
+
+	/**
+	 * {@code Module.isNativeAccessEnabled()} of this code, looked up reflectively because it
+	 * appeared in JDK 22; {@code false} on older runtimes.
+	 */
+	static boolean nativeAccessEnabled() {
+		try {
+			final Method method = Module.class.getMethod("isNativeAccessEnabled");
+			return (Boolean) method.invoke(WatchBackend.class.getModule());
+		}
+		catch (ReflectiveOperationException | RuntimeException ex) {
+			return false;
+		}
+	}
+
+	abstract String name();
+
+	/**
+	 * Starts watching a directory for create, modify and delete events.
+	 * Registering the same directory again returns the same key.
+	 */
+	abstract WatchKey register(Path directory) throws IOException;
+
+	/**
+	 * Reads events until the backend is closed or the thread is interrupted.
+	 */
+	abstract void run(Sink sink) throws InterruptedException;
+
+	/**
+	 * Receives events on the backend reader thread.
+	 */
+	interface Sink {
+		/**
+		 * @param key      key of the directory, {@code null} for an {@code OVERFLOW} of all directories
+		 * @param kind     {@code ENTRY_CREATE}, {@code ENTRY_MODIFY}, {@code ENTRY_DELETE} or {@code OVERFLOW}
+		 * @param fileName name relative to the directory, {@code null} for {@code OVERFLOW}
+		 */
+		void event(WatchKey key, WatchEvent.Kind<?> kind, Path fileName);
+	}
+}
@@ -7,7 +7,9 @@ import java.io.IOException;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * User: Belyaev Gleb
@@ -24,6 +26,12 @@ public class WatchDir
      */
     private boolean isRecursive;
     private final List<Path> pathList;
+    /**
+     * Приоритет каждой добавленной папки. Вложенные папки получают приоритет самого близкого
+     * добавленного корня, поэтому маленькая папка с высоким приоритетом внутри большого дерева
+     * сохраняет свой приоритет независимо от порядка добавления.
+     */
+    private final Map<Path, Priority> priorities;
     private final List<Path> regList;
     private boolean isRun=false;
 
@@ -38,6 +46,7 @@ public class WatchDir
     {
         this.listener = listener;
         this.pathList = new ArrayList<>();
+        this.priorities = new HashMap<>();
         this.regList = new ArrayList<>();
         this.isRecursive = isRecursive;
     }
@@ -58,7 +67,7 @@ public class WatchDir
 
         for (Path path : pathList)
         {
-            registerPath(path);
+            registerPath(path, priorities.get(path));
         }
         isRun = true;
     }
@@ -71,19 +80,32 @@ public class WatchDir
 
     public void addPath(Path path)
     {
-        pathList.add(path);
+        addPath(path, Priority.NORMAL);
+    }
+
+    public void addPath(String path)
+    {
+        addPath(Paths.get(path));
+    }
+
+    public void addPath(Path path, Priority priority)
+    {
+        if (priorities.put(path, priority) == null)
+        {
+            pathList.add(path);
+        }
         if (isRun)
         {
-            registerPath(path);
+            registerPath(path, priority);
         }
     }
 
-    public void addPath(String path)
+    public void addPath(String path, Priority priority)
     {
-        addPath(Paths.get(path));
+        addPath(Paths.get(path), priority);
     }
 
-    private void registerPath(Path path)
+    private void registerPath(Path path, Priority priority)
     {
         try
         {
@@ -91,12 +113,12 @@ public class WatchDir
             if (isRecursive)
             {
                 logger.debug("Сканирование {} ...", path);
-                registerAll(path);
+                registerAll(path, priority);
                 logger.debug("Сканирование законченно.");
             }
             else
             {
-                registerInWatchService(path);
+                registerInWatchService(path, priority);
             }
 
         }
@@ -109,16 +131,36 @@ public class WatchDir
     /**
      * Регистрация папки в WatchService
      */
-    private void registerInWatchService(Path path) throws IOException
+    private void registerInWatchService(Path path, Priority priority) throws IOException
     {
         regList.add(path);
-        FileChangeMonitor.register(listener, path);
+        FileChangeMonitor.register(listener, path, priority);
+    }
+
+    /**
+     * Приоритет самого близкого добавленного корня, в котором лежит папка
+     */
+    private Priority priorityOf(Path path, Priority defaultPriority)
+    {
+        final Path normalized = path.toAbsolutePath().normalize();
+        Priority result = defaultPriority;
+        int depth = -1;
+        for (Map.Entry<Path, Priority> root : priorities.entrySet())
+        {
+            final Path rootPath = root.getKey().toAbsolutePath().normalize();
+            if (normalized.startsWith(rootPath) && rootPath.getNameCount() > depth)
+            {
+                depth = rootPath.getNameCount();
+                result = root.getValue();
+            }
+        }
+        return result;
     }
 
     /**
      * Регистрация папки и всех вложенных каталогов в WatchService.
      */
-    private void registerAll(Path start) throws IOException
+    private void registerAll(final Path start, final Priority priority) throws IOException
     {
         // регистрация папки и вложенных папок
         Files.walkFileTree(start, new SimpleFileVisitor<Path>()
@@ -127,7 +169,7 @@ public class WatchDir
             public FileVisitResult preVisitDirectory(Path path, BasicFileAttributes attrs)
                     throws IOException
             {
-                registerInWatchService(path);
+                registerInWatchService(path, path.equals(start) ? priority : priorityOf(path, priority));
                 return FileVisitResult.CONTINUE;
             }
         });
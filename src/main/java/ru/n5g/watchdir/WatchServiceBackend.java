@@ -0,0 +1,59 @@
+package ru.n5g.watchdir;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.List;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Portable backend on top of the JDK {@link WatchService}.
+ */
+final class WatchServiceBackend extends WatchBackend
+{
+
+	private final WatchService watcher;
+
+	WatchServiceBackend() throws IOException {
+		watcher = FileSystems.getDefault().newWatchService();
+	}
+
+	@Override
+	String name() {
+		return "watchservice";
+	}
+
+	@Override
+	WatchKey register(Path directory) throws IOException {
+		return directory.register(watcher, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+	}
+
+	@Override
+	void run(Sink sink) throws InterruptedException {
+		while (true) {
+			final WatchKey key;
+			try {
+				key = watcher.take();
+			} catch (ClosedWatchServiceException x) {
+				return;
+			}
+			final List<WatchEvent<?>> polled = key.pollEvents();
+			for (int i = 0, n = polled.size(); i < n; i++) {
+				final WatchEvent<?> e = polled.get(i);
+				final WatchEvent.Kind<?> kind = e.kind();
+				if (kind == ENTRY_CREATE || kind == ENTRY_MODIFY || kind == ENTRY_DELETE) {
+					sink.event(key, kind, (Path) e.context());
+				}
+				else if (kind == OVERFLOW) {
+					sink.event(key, OVERFLOW, null);
+				}
+			}
+			key.reset();
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		watcher.close();
+	}
+}
@@ -0,0 +1,433 @@
+package ru.n5g.watchdir;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemoryLayout;
+import java.lang.foreign.MemorySegment;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.Watchable;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static java.lang.foreign.ValueLayout.*;
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Linux backend calling inotify directly through the Foreign Function &amp; Memory API.
+ * Events are read in large batches into one off-heap buffer and decoded in place; the
+ * only per-event allocation is the file name handed to the listeners. The watch
+ * descriptor to key mapping is a plain array indexed by descriptor.
+ * Event kinds are mapped the same way as the JDK WatchService does on Linux: a rename
+ * arrives as delete plus create, the rename cookie is not used.
+ * <p>
+ * The reader thread owns the descriptors and the native memory. {@link #close()} only
+ * wakes it through an eventfd; the reader closes both descriptors and the arena after
+ * its loop, so a descriptor number is never reused while a read on it may be pending.
+ */
+final class InotifyBackend extends WatchBackend
+{
+
+	private static final int IN_MODIFY = 0x00000002;
+	private static final int IN_ATTRIB = 0x00000004;
+	private static final int IN_MOVED_FROM = 0x00000040;
+	private static final int IN_MOVED_TO = 0x00000080;
+	private static final int IN_CREATE = 0x00000100;
+	private static final int IN_DELETE = 0x00000200;
+	private static final int IN_Q_OVERFLOW = 0x00004000;
+	private static final int IN_IGNORED = 0x00008000;
+	private static final int IN_ONLYDIR = 0x01000000;
+	private static final int IN_CLOEXEC = 0x00080000;
+	private static final int EFD_CLOEXEC = 0x00080000;
+	private static final int EFD_NONBLOCK = 0x00000800;
+	private static final int WATCH_MASK = IN_MODIFY | IN_ATTRIB | IN_MOVED_FROM | IN_MOVED_TO | IN_CREATE | IN_DELETE | IN_ONLYDIR;
+
+	private static final short POLLIN = 0x0001;
+	private static final int EINTR = 4;
+	private static final int EAGAIN = 11;
+
+	/**
+	 * struct pollfd: int fd, short events, short revents
+	 */
+	private static final int POLLFD_SIZE = 8;
+	private static final int REVENTS_OFFSET = 6;
+	/**
+	 * struct inotify_event: int wd, uint32_t mask, uint32_t cookie, uint32_t len, char name[len]
+	 */
+	private static final int EVENT_HEADER = 16;
+	private static final int NAME_MAX = 255;
+	private static final int PATH_MAX = 4096;
+	private static final int BUFFER_SIZE = Integer.getInteger("watchdir.inotifyBufferSize", 256 * 1024);
+	private static final int POLL_TIMEOUT = 500;
+
+	private static final Linker LINKER = Linker.nativeLinker();
+	private static final MemoryLayout CAPTURE_LAYOUT = Linker.Option.captureStateLayout();
+	private static final long ERRNO_OFFSET = CAPTURE_LAYOUT.byteOffset(MemoryLayout.PathElement.groupElement("errno"));
+	private static final MethodHandle INOTIFY_INIT1 = downcall("inotify_init1",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT), true);
+	private static final MethodHandle INOTIFY_ADD_WATCH = downcall("inotify_add_watch",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT), true);
+	private static final MethodHandle INOTIFY_RM_WATCH = downcall("inotify_rm_watch",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT), false);
+	private static final MethodHandle EVENTFD = downcall("eventfd",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT, JAVA_INT), true);
+	private static final MethodHandle READ = downcall("read",
+			FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG), true);
+	private static final MethodHandle WRITE = downcall("write",
+			FunctionDescriptor.of(JAVA_LONG, JAVA_INT, ADDRESS, JAVA_LONG), false);
+	private static final MethodHandle POLL = downcall("poll",
+			FunctionDescriptor.of(JAVA_INT, ADDRESS, JAVA_LONG, JAVA_INT), false);
+	private static final MethodHandle CLOSE = downcall("close",
+			FunctionDescriptor.of(JAVA_INT, JAVA_INT), false);
+
+	private final Arena arena = Arena.ofShared();
+	private final int fd;
+	/**
+	 * eventfd written by {@link #close()} to wake the reader from poll()
+	 */
+	private final int wakeFd;
+	private final MemorySegment buffer;
+	private final MemorySegment pollFds;
+	/**
+	 * 8 byte eventfd counter increment
+	 */
+	private final MemorySegment wakeValue;
+	/**
+	 * errno of the reader thread calls; registration uses its own capture segment
+	 */
+	private final MemorySegment readErrno;
+	/**
+	 * C string and errno scratch for {@link #register}, guarded by this.
+	 * Native memory and descriptors are used only by the reader thread or under this lock,
+	 * and released once, by {@link #release()}.
+	 */
+	private final MemorySegment registerPath;
+	private final MemorySegment registerErrno;
+	private final byte[] name = new byte[NAME_MAX];
+	/**
+	 * Keys indexed by watch descriptor. Writers publish element changes by re-assigning
+	 * the volatile field, so the reader needs no lock and no boxing.
+	 */
+	private volatile InotifyKey[] keys = new InotifyKey[1024];
+	private volatile boolean closed = false;
+	/**
+	 * Guarded by this
+	 */
+	private Thread reader;
+	private boolean released = false;
+
+	InotifyBackend() throws IOException {
+		int inotify = -1;
+		try (Arena call = Arena.ofConfined()) {
+			final MemorySegment errno = call.allocate(CAPTURE_LAYOUT);
+			inotify = (int) INOTIFY_INIT1.invokeExact(errno, IN_CLOEXEC);
+			if (inotify < 0) {
+				throw new IOException("inotify_init1 failed, errno " + errno.get(JAVA_INT, ERRNO_OFFSET));
+			}
+			final int eventfd = (int) EVENTFD.invokeExact(errno, 0, EFD_CLOEXEC | EFD_NONBLOCK);
+			if (eventfd < 0) {
+				throw new IOException("eventfd failed, errno " + errno.get(JAVA_INT, ERRNO_OFFSET));
+			}
+			fd = inotify;
+			wakeFd = eventfd;
+		}
+		catch (IOException | RuntimeException | Error ex) {
+			closeFd(inotify);
+			arena.close();
+			throw ex;
+		}
+		catch (Throwable ex) {
+			closeFd(inotify);
+			arena.close();
+			throw new IOException(ex);
+		}
+		buffer = arena.allocate(BUFFER_SIZE, 8);
+		pollFds = arena.allocate(2 * POLLFD_SIZE, 4);
+		pollFds.set(JAVA_INT, 0, fd);
+		pollFds.set(JAVA_SHORT, 4, POLLIN);
+		pollFds.set(JAVA_INT, POLLFD_SIZE, wakeFd);
+		pollFds.set(JAVA_SHORT, POLLFD_SIZE + 4, POLLIN);
+		wakeValue = arena.allocate(JAVA_LONG);
+		wakeValue.set(JAVA_LONG, 0, 1L);
+		readErrno = arena.allocate(CAPTURE_LAYOUT);
+		registerPath = arena.allocate(PATH_MAX);
+		registerErrno = arena.allocate(CAPTURE_LAYOUT);
+	}
+
+	private static MethodHandle downcall(String function, FunctionDescriptor descriptor, boolean captureErrno) {
+		final MemorySegment symbol = LINKER.defaultLookup().find(function)
+				.orElseThrow(() -> new UnsupportedOperationException("Native function not found: " + function));
+		return captureErrno
+				? LINKER.downcallHandle(symbol, descriptor, Linker.Option.captureCallState("errno"))
+				: LINKER.downcallHandle(symbol, descriptor);
+	}
+
+	@Override
+	String name() {
+		return "inotify";
+	}
+
+	@Override
+	synchronized WatchKey register(Path directory) throws IOException {
+		if (closed) {
+			throw new IOException("inotify backend is closed");
+		}
+		final byte[] path = directory.toString().getBytes(StandardCharsets.UTF_8);
+		if (path.length >= PATH_MAX) {
+			throw new IOException("Path too long: " + directory);
+		}
+		final int wd;
+		try {
+			MemorySegment.copy(path, 0, registerPath, JAVA_BYTE, 0, path.length);
+			registerPath.set(JAVA_BYTE, path.length, (byte) 0);
+			wd = (int) INOTIFY_ADD_WATCH.invokeExact(registerErrno, fd, registerPath, WATCH_MASK);
+			if (wd < 0) {
+				throw new IOException("inotify_add_watch failed for " + directory + ", errno " + registerErrno.get(JAVA_INT, ERRNO_OFFSET));
+			}
+		}
+		catch (IOException | RuntimeException | Error ex) {
+			throw ex;
+		}
+		catch (Throwable ex) {
+			throw new IOException(ex);
+		}
+		InotifyKey[] current = keys;
+		if (wd < current.length && current[wd] != null && current[wd].directory.equals(directory)) {
+			return current[wd];
+		}
+		if (wd >= current.length) {
+			current = Arrays.copyOf(current, Math.max(wd + 1, current.length * 2));
+		}
+		final InotifyKey key = new InotifyKey(wd, directory);
+		current[wd] = key;
+		keys = current;
+		return key;
+	}
+
+	private synchronized void forget(InotifyKey key) {
+		final InotifyKey[] current = keys;
+		if (key.wd < current.length && current[key.wd] == key) {
+			current[key.wd] = null;
+			keys = current;
+		}
+	}
+
+	@Override
+	void run(Sink sink) throws InterruptedException {
+		synchronized (this) {
+			if (closed || reader != null) {
+				return;
+			}
+			reader = Thread.currentThread();
+		}
+		try {
+			read(sink);
+		}
+		finally {
+			release();
+		}
+	}
+
+	private void read(Sink sink) throws InterruptedException {
+		while (!closed) {
+			final long read;
+			try {
+				pollFds.set(JAVA_SHORT, REVENTS_OFFSET, (short) 0);
+				final int ready = (int) POLL.invokeExact(pollFds, 2L, POLL_TIMEOUT);
+				if (Thread.interrupted()) {
+					throw new InterruptedException();
+				}
+				// a readable eventfd means close(): the loop condition ends the reader
+				if (ready <= 0 || closed || (pollFds.get(JAVA_SHORT, REVENTS_OFFSET) & POLLIN) == 0) {
+					continue;
+				}
+				read = (long) READ.invokeExact(readErrno, fd, buffer, (long) BUFFER_SIZE);
+			}
+			catch (InterruptedException | RuntimeException | Error ex) {
+				throw ex;
+			}
+			catch (Throwable ex) {
+				throw new IllegalStateException(ex);
+			}
+			if (read < 0) {
+				final int errno = readErrno.get(JAVA_INT, ERRNO_OFFSET);
+				if (errno == EINTR || errno == EAGAIN) {
+					continue;
+				}
+				throw new IllegalStateException("inotify read failed, errno " + errno);
+			}
+			decode(read, sink);
+		}
+	}
+
+	private void decode(long size, Sink sink) {
+		final InotifyKey[] current = keys;
+		long offset = 0;
+		while (offset + EVENT_HEADER <= size) {
+			final int wd = buffer.get(JAVA_INT, offset);
+			final int mask = buffer.get(JAVA_INT, offset + 4);
+			// the cookie at offset 8 pairs MOVED_FROM with MOVED_TO; renames are reported as delete + create
+			final int length = buffer.get(JAVA_INT, offset + 12);
+			final long nameOffset = offset + EVENT_HEADER;
+			offset = nameOffset + length;
+
+			if ((mask & IN_Q_OVERFLOW) != 0) {
+				// wd is -1: the kernel queue overflowed, events of any directory may be lost
+				sink.event(null, OVERFLOW, null);
+				continue;
+			}
+			final InotifyKey key = wd >= 0 && wd < current.length ? current[wd] : null;
+			if (key == null) {
+				continue;
+			}
+			if ((mask & IN_IGNORED) != 0) {
+				key.valid = false;
+				forget(key);
+				continue;
+			}
+			final WatchEvent.Kind<?> kind;
+			if ((mask & (IN_CREATE | IN_MOVED_TO)) != 0) {
+				kind = ENTRY_CREATE;
+			}
+			else if ((mask & (IN_DELETE | IN_MOVED_FROM)) != 0) {
+				kind = ENTRY_DELETE;
+			}
+			else if ((mask & (IN_MODIFY | IN_ATTRIB)) != 0) {
+				kind = ENTRY_MODIFY;
+			}
+			else {
+				continue;
+			}
+			if (length == 0) {
+				// event on the watched directory itself
+				continue;
+			}
+			sink.event(key, kind, fileName(key.directory, nameOffset, length));
+		}
+	}
+
+	/**
+	 * The name is NUL padded up to {@code length}.
+	 */
+	private Path fileName(Path directory, long offset, int length) {
+		final int max = Math.min(length, name.length);
+		MemorySegment.copy(buffer, JAVA_BYTE, offset, name, 0, max);
+		int end = 0;
+		while (end < max && name[end] != 0) {
+			end++;
+		}
+		return directory.getFileSystem().getPath(new String(name, 0, end, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Stops the reader. The descriptors and native memory are released by the reader
+	 * thread when it leaves {@link #run}, or here if no reader was ever started.
+	 */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		if (reader == null) {
+			release();
+			return;
+		}
+		try {
+			final long ignored = (long) WRITE.invokeExact(wakeFd, wakeValue, 8L);
+		}
+		catch (RuntimeException | Error ex) {
+			throw ex;
+		}
+		catch (Throwable ex) {
+			throw new IOException(ex);
+		}
+	}
+
+	private synchronized void release() {
+		if (released) {
+			return;
+		}
+		released = true;
+		closed = true;
+		closeFd(fd);
+		closeFd(wakeFd);
+		arena.close();
+	}
+
+	private static void closeFd(int descriptor) {
+		if (descriptor < 0) {
+			return;
+		}
+		try {
+			final int ignored = (int) CLOSE.invokeExact(descriptor);
+		}
+		catch (RuntimeException | Error ex) {
+			throw ex;
+		}
+		catch (Throwable ex) {
+			throw new IllegalStateException(ex);
+		}
+	}
+
+	private final class InotifyKey implements WatchKey {
+		private final int wd;
+		private final Path directory;
+		private volatile boolean valid = true;
+
+		private InotifyKey(int wd, Path directory) {
+			this.wd = wd;
+			this.directory = directory;
+		}
+
+		@Override
+		public boolean isValid() {
+			return valid && !closed;
+		}
+
+		@Override
+		public List<WatchEvent<?>> pollEvents() {
+			// events are pushed to the sink by the reader thread
+			return Collections.emptyList();
+		}
+
+		@Override
+		public boolean reset() {
+			return isValid();
+		}
+
+		@Override
+		public void cancel() {
+			synchronized (InotifyBackend.this) {
+				if (!valid) {
+					return;
+				}
+				valid = false;
+				forget(this);
+				if (released) {
+					return;
+				}
+				try {
+					final int ignored = (int) INOTIFY_RM_WATCH.invokeExact(fd, wd);
+				}
+				catch (RuntimeException | Error ex) {
+					throw ex;
+				}
+				catch (Throwable ex) {
+					throw new IllegalStateException(ex);
+				}
+			}
+		}
+
+		@Override
+		public Watchable watchable() {
+			return directory;
+		}
+	}
+}
@@ -0,0 +1,118 @@
+package ru.n5g.watchdir;
+
+import org.apache.commons.io.FileUtils;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Сравнение backend'ов на одном и том же дереве папок. Запускается отдельно для каждого
+ * backend'а, inotify доступен только из multi-release jar на Java 22+:
+ * <pre>
+ * java -cp target/watchdir-0.1.jar:target/test-classes:... -Dwatchdir.backend=watchservice ru.n5g.watchdir.BackendBenchmark [папок] [файлов]
+ * java -cp target/watchdir-0.1.jar:target/test-classes:... -Dwatchdir.backend=inotify ru.n5g.watchdir.BackendBenchmark [папок] [файлов]
+ * </pre>
+ */
+public class BackendBenchmark
+{
+    public static void main(String[] args) throws Exception
+    {
+        final int dirs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+        final int files = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        final Path root = Files.createTempDirectory(BackendBenchmark.class.getSimpleName()).toRealPath();
+        final Path[] tree = new Path[dirs];
+        for (int i = 0; i < dirs; i++)
+        {
+            tree[i] = Files.createDirectories(root.resolve("d" + (i % 50)).resolve("d" + i));
+        }
+
+        final CountDownLatch created = new CountDownLatch(files);
+        final FileChangeListener listener = new FileChangeListener()
+        {
+            @Override
+            public void fileModified(Path file)
+            {
+            }
+
+            @Override
+            public void fileCreated(Path file)
+            {
+                created.countDown();
+            }
+
+            @Override
+            public void fileDeleted(Path file)
+            {
+            }
+        };
+
+        // инициализация backend'а не входит в замер регистрации
+        final String backend = FileChangeMonitor.getBackendName();
+        final WatchDir watchDir = new WatchDir(listener, true);
+        watchDir.addPath(root);
+        long start = System.nanoTime();
+        watchDir.start();
+        final long registerNanos = System.nanoTime() - start;
+
+        final long allocatedBefore = allocatedBytes();
+        final long cpuBefore = watcherCpuNanos();
+        start = System.nanoTime();
+        for (int i = 0; i < files; i++)
+        {
+            Files.createFile(tree[i % dirs].resolve("f" + i));
+        }
+        final boolean complete = created.await(60, TimeUnit.SECONDS);
+        final long deliverNanos = System.nanoTime() - start;
+        final long allocated = allocatedBytes() - allocatedBefore;
+        final long cpu = watcherCpuNanos() - cpuBefore;
+
+        System.out.println("backend:      " + backend);
+        System.out.println("directories:  " + (dirs + 51) + ", registered in " + TimeUnit.NANOSECONDS.toMillis(registerNanos) + " ms");
+        System.out.println("events:       " + (files - created.getCount()) + "/" + files + (complete ? "" : " (timeout)"));
+        System.out.println("throughput:   " + (long) (files / (deliverNanos / 1e9)) + " events/s");
+        System.out.println("watcher cpu:  " + TimeUnit.NANOSECONDS.toMillis(cpu) + " ms (all threads except main)");
+        System.out.println("allocation:   " + (allocated / files) + " bytes/event (all threads, incl. file creation)");
+        System.out.println("latency:      " + FileChangeMonitor.getLatencyStats(Priority.NORMAL));
+
+        watchDir.stop();
+        FileUtils.forceDelete(root.toFile());
+        System.exit(complete ? 0 : 1);
+    }
+
+    private static long watcherCpuNanos()
+    {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        final long self = Thread.currentThread().getId();
+        long total = 0;
+        for (long id : bean.getAllThreadIds())
+        {
+            if (id != self)
+            {
+                total += Math.max(0, bean.getThreadCpuTime(id));
+            }
+        }
+        return total;
+    }
+
+    private static long allocatedBytes()
+    {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+        {
+            return 0;
+        }
+        long total = 0;
+        for (long bytes : ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(bean.getAllThreadIds()))
+        {
+            if (bytes > 0)
+            {
+                total += bytes;
+            }
+        }
+        return total;
+    }
+}
@@ -0,0 +1,407 @@
+package ru.n5g.watchdir;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class EventJournalTest
+{
+    private Path journalDir;
+    private EventJournal journal;
+    private FileChangeListener listener = mock(FileChangeListener.class);
+
+    @Before
+    public void setUp() throws Exception
+    {
+        journalDir = Files.createTempDirectory(getClass().getSimpleName());
+        reset(listener);
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (journal != null)
+        {
+            journal.close();
+        }
+        FileUtils.forceDelete(journalDir.toFile());
+    }
+
+    @Test
+    public void testReplayAfterReopen() throws Exception
+    {
+        journal = open(EventJournal.DEFAULT_SEGMENT_SIZE);
+        journal.fileCreated(Paths.get("/data/a"));
+        journal.fileModified(Paths.get("/data/a"));
+        journal.fileDeleted(Paths.get("/data/b"));
+        journal.close();
+
+        journal = open(EventJournal.DEFAULT_SEGMENT_SIZE);
+        assertEquals(3, journal.getSequence());
+        assertEquals(3, journal.replay(0, listener));
+
+        InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).fileCreated(eq(Paths.get("/data/a")));
+        inOrder.verify(listener).fileModified(eq(Paths.get("/data/a")));
+        inOrder.verify(listener).fileDeleted(eq(Paths.get("/data/b")));
+
+        journal.fileCreated(Paths.get("/data/c"));
+        assertEquals(4, journal.getSequence());
+    }
+
+    /**
+     * после перезапуска подписчик получает только неподтвержденные события
+     */
+    @Test
+    public void testConsumerResumesFromCommitted() throws Exception
+    {
+        journal = open(EventJournal.DEFAULT_SEGMENT_SIZE);
+        journal.subscribe("indexer", listener);
+        journal.fileCreated(Paths.get("/data/1"));
+        journal.fileCreated(Paths.get("/data/2"));
+        verify(listener, times(2)).fileCreated(any(Path.class));
+        journal.sync();
+        // подтверждает сам подписчик
+        assertEquals(0, journal.getCommitted("indexer"));
+        journal.commit("indexer");
+        assertEquals(2, journal.getCommitted("indexer"));
+
+        // события без подписчика, затем падение процесса
+        journal.unsubscribe("indexer");
+        journal.fileCreated(Paths.get("/data/3"));
+        journal.close();
+
+        reset(listener);
+        journal = open(EventJournal.DEFAULT_SEGMENT_SIZE);
+        journal.subscribe("indexer", listener);
+        verify(listener).fileCreated(eq(Paths.get("/data/3")));
+        verify(listener, times(1)).fileCreated(any(Path.class));
+    }
+
+    @Test
+    public void testAutoCommitIsOptIn() throws Exception
+    {
+        journal = open(EventJournal.DEFAULT_SEGMENT_SIZE);
+        journal.subscribe("manual", listener);
+        journal.subscribe("auto", mock(FileChangeListener.class), true);
+        journal.fileCreated(Paths.get("/data/1"));
+        journal.fileCreated(Paths.get("/data/2"));
+        journal.sync();
+
+        assertEquals(0, journal.getCommitted("manual"));
+        assertEquals(2, journal.getDelivered("manual"));
+        assertEquals(2, journal.getCommitted("auto"));
+
+        journal.commit("manual", 1);
+        journal.close();
+        journal = open(EventJournal.DEFAULT_SEGMENT_SIZE);
+        assertEquals(1, journal.getCommitted("manual"));
+    }
+
+    /**
+     * после исключения слушателя номер подписчика не двигается, событие доставляется повторно
+     */
+    @Test
+    public void testFailedListenerIsRedelivered() throws Exception
+    {
+        doThrow(new IllegalStateException("index is busy")).doNothing()
+                .when(listener).fileCreated(eq(Paths.get("/data/2")));
+        journal = open(EventJournal.DEFAULT_SEGMENT_SIZE);
+        journal.subscribe("indexer", listener);
+        journal.fileCreated(Paths.get("/data/1"));
+        journal.fileCreated(Paths.get("/data/2"));
+        journal.fileCreated(Paths.get("/data/3"));
+
+        assertEquals(1, journal.getDelivered("indexer"));
+        verify(listener, never()).fileCreated(eq(Paths.get("/data/3")));
+
+        journal.sync();
+        assertEquals(3, journal.getDelivered("indexer"));
+        InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).fileCreated(eq(Paths.get("/data/1")));
+        inOrder.verify(listener, times(2)).fileCreated(eq(Paths.get("/data/2")));
+        inOrder.verify(listener).fileCreated(eq(Paths.get("/data/3")));
+        verify(listener, times(4)).fileCreated(any(Path.class));
+    }
+
+    @Test
+    public void testCorruptOffsetStartsFromBeginning() throws Exception
+    {
+        journal = open(EventJournal.DEFAULT_SEGMENT_SIZE);
+        journal.fileCreated(Paths.get("/data/1"));
+        Files.write(journalDir.resolve("indexer.offset"), "1?2".getBytes("US-ASCII"));
+
+        assertEquals(0, journal.getCommitted("indexer"));
+        journal.subscribe("indexer", listener);
+        verify(listener).fileCreated(eq(Paths.get("/data/1")));
+    }
+
+    /**
+     * подписчик, который падает на одном событии, повторяется по таймеру с нарастающей паузой
+     */
+    @Test
+    public void testFailingConsumerBacksOff() throws Exception
+    {
+        doThrow(new IllegalStateException("poison")).when(listener).fileCreated(eq(Paths.get("/data/2")));
+        journal = new EventJournal(journalDir, EventJournal.DEFAULT_SEGMENT_SIZE, EventJournal.DEFAULT_SYNC_EVERY, 5,
+                Integer.MAX_VALUE);
+        FileChangeListener healthy = mock(FileChangeListener.class);
+        journal.subscribe("healthy", healthy);
+        journal.subscribe("indexer", listener);
+        journal.fileCreated(Paths.get("/data/1"));
+        journal.fileCreated(Paths.get("/data/2"));
+
+        Thread.sleep(700);
+        journal.fileCreated(Paths.get("/data/3"));
+        verify(healthy).fileCreated(eq(Paths.get("/data/3")));
+        assertEquals(1, journal.getDelivered("indexer"));
+        // без паузы за 700 мс было бы больше сотни попыток; 100 + 200 + 400 мс - не больше четырех
+        verify(listener, atMost(4)).fileCreated(eq(Paths.get("/data/2")));
+        verify(listener, atLeast(3)).fileCreated(eq(Paths.get("/data/2")));
+    }
+
+    /**
+     * новый подписчик догоняет журнал вне блокировки: запись событий не ждет его слушателя
+     */
+    @Test
+    public void testCatchUpDoesNotBlockAppend() throws Exception
+    {
+        journal = open(4096);
+        for (int i = 0; i < 500; i++)
+        {
+            journal.fileModified(Paths.get("/data/file" + i));
+        }
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                entered.countDown();
+                release.await();
+                return null;
+            }
+        }).when(listener).fileModified(eq(Paths.get("/data/file0")));
+
+        Thread subscriber = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    journal.subscribe("indexer", listener);
+                }
+                catch (IOException e)
+                {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        subscriber.start();
+        try
+        {
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+            Thread writer = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    journal.fileCreated(Paths.get("/data/new"));
+                }
+            });
+            writer.start();
+            writer.join(1000);
+            assertFalse("append waited for the catching up consumer", writer.isAlive());
+            assertEquals(501, journal.getSequence());
+        }
+        finally
+        {
+            release.countDown();
+        }
+        subscriber.join(5000);
+        assertEquals(501, journal.getDelivered("indexer"));
+        verify(listener).fileCreated(eq(Paths.get("/data/new")));
+        verify(listener, times(500)).fileModified(any(Path.class));
+    }
+
+    @Test
+    public void testCompactionKeepsLatestPerPath() throws Exception
+    {
+        journal = open(4096);
+        for (int i = 0; i < 2000; i++)
+        {
+            journal.fileModified(Paths.get("/data/file" + (i % 5)));
+        }
+        journal.fileDeleted(Paths.get("/data/file0"));
+        assertTrue(countSegments() > 3);
+
+        journal.compact();
+        assertEquals(2, countSegments());
+
+        assertEquals(2001, journal.replay(0, listener));
+        verify(listener).fileDeleted(eq(Paths.get("/data/file0")));
+        for (int i = 1; i < 5; i++)
+        {
+            verify(listener, atLeast(1)).fileModified(eq(Paths.get("/data/file" + i)));
+        }
+        // в сжатых сегментах по одному событию на путь, остальное в активном сегменте
+        verify(listener, atMost(5 + 4096 / 20)).fileModified(any(Path.class));
+
+        journal.close();
+        reset(listener);
+        journal = open(4096);
+        assertEquals(2001, journal.getSequence());
+        assertEquals(2001, journal.replay(2000, listener));
+        verify(listener).fileDeleted(eq(Paths.get("/data/file0")));
+    }
+
+    /**
+     * потеря событий ОС сохраняется в журнале и переживает сжатие
+     */
+    @Test
+    public void testOverflowIsReplayed() throws Exception
+    {
+        journal = open(4096);
+        journal.fileCreated(Paths.get("/data"));
+        journal.overflow(Paths.get("/data"));
+        journal.fileModified(Paths.get("/data"));
+        for (int i = 0; i < 2000; i++)
+        {
+            journal.fileModified(Paths.get("/data/file" + (i % 5)));
+        }
+        journal.compact();
+        assertEquals(2, countSegments());
+        journal.close();
+
+        journal = open(4096);
+        journal.subscribe("indexer", listener);
+        verify(listener).overflow(eq(Paths.get("/data")));
+        verify(listener).fileModified(eq(Paths.get("/data")));
+        InOrder inOrder = inOrder(listener);
+        inOrder.verify(listener).overflow(eq(Paths.get("/data")));
+        inOrder.verify(listener).fileModified(eq(Paths.get("/data")));
+    }
+
+    /**
+     * падение после фиксации сжатого сегмента, но до удаления старых: замена завершается при открытии
+     */
+    @Test
+    public void testCompactionCompletedOnRecovery() throws Exception
+    {
+        journal = open(4096);
+        for (int i = 0; i < 2000; i++)
+        {
+            journal.fileModified(Paths.get("/data/file" + (i % 5)));
+        }
+        int segments = countSegments();
+        assertNotNull(journal.prepareCompaction());
+        assertEquals(segments, countSegments());
+        journal.close();
+
+        journal = open(4096);
+        assertEquals(2, countSegments());
+        assertEquals(0, countFiles("compact.*"));
+        assertEquals(2000, journal.getSequence());
+        assertEquals(2000, journal.replay(0, listener));
+        for (int i = 0; i < 5; i++)
+        {
+            verify(listener, atLeast(1)).fileModified(eq(Paths.get("/data/file" + i)));
+        }
+    }
+
+    /**
+     * незафиксированное сжатие при восстановлении отбрасывается, старые сегменты не трогаются
+     */
+    @Test
+    public void testUnfinishedCompactionIsDiscarded() throws Exception
+    {
+        journal = open(4096);
+        for (int i = 0; i < 2000; i++)
+        {
+            journal.fileModified(Paths.get("/data/file" + i));
+        }
+        journal.close();
+        int segments = countSegments();
+        Files.write(journalDir.resolve("compact.tmp"), new byte[100]);
+
+        journal = open(4096);
+        assertEquals(segments, countSegments());
+        assertEquals(0, countFiles("compact.*"));
+        assertEquals(2000, journal.replay(0, listener));
+        verify(listener, times(2000)).fileModified(any(Path.class));
+    }
+
+    /**
+     * недописанная запись отбрасывается при восстановлении
+     */
+    @Test
+    public void testTornWriteIsDiscarded() throws Exception
+    {
+        journal = open(EventJournal.DEFAULT_SEGMENT_SIZE);
+        journal.fileCreated(Paths.get("/data/1"));
+        journal.fileCreated(Paths.get("/data/2"));
+        journal.close();
+        journal = null;
+
+        Path segment = journalDir.resolve(String.format("%020d.log", 1));
+        try (RandomAccessFile file = new RandomAccessFile(segment.toFile(), "rw"))
+        {
+            // испортить путь второй записи
+            long second = 8 + 9 + "/data/1".length();
+            file.seek(second + 8 + 9);
+            file.write('X');
+        }
+
+        journal = open(EventJournal.DEFAULT_SEGMENT_SIZE);
+        assertEquals(1, journal.getSequence());
+        journal.fileCreated(Paths.get("/data/3"));
+        assertEquals(2, journal.replay(0, listener));
+        verify(listener).fileCreated(eq(Paths.get("/data/1")));
+        verify(listener).fileCreated(eq(Paths.get("/data/3")));
+        verify(listener, never()).fileCreated(eq(Paths.get("/data/2")));
+    }
+
+    private EventJournal open(int segmentSize) throws Exception
+    {
+        return new EventJournal(journalDir, segmentSize, EventJournal.DEFAULT_SYNC_EVERY, 0, Integer.MAX_VALUE);
+    }
+
+    private int countSegments() throws Exception
+    {
+        return countFiles("*.log");
+    }
+
+    private int countFiles(String glob) throws Exception
+    {
+        int count = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(journalDir, glob))
+        {
+            for (Path ignored : stream)
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+}
@@ -0,0 +1,208 @@
+package ru.n5g.watchdir;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static org.junit.Assert.*;
+
+public class EventRingTest
+{
+    private final Path fileName = Paths.get("test.txt");
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testCapacityMustBePowerOfTwo() throws Exception
+    {
+        new EventRing(100);
+    }
+
+    @Test
+    public void testOrderAndWrapAround() throws Exception
+    {
+        EventRing ring = new EventRing(4);
+        assertNull(ring.poll());
+
+        for (int round = 0; round < 3; round++)
+        {
+            for (int i = 0; i < ring.capacity(); i++)
+            {
+                ring.put(null, i % 2 == 0 ? ENTRY_CREATE : ENTRY_DELETE, Paths.get("f" + i));
+            }
+            assertEquals(4, ring.size());
+
+            for (int i = 0; i < ring.capacity(); i++)
+            {
+                EventRing.Event e = ring.take();
+                assertEquals(Paths.get("f" + i), e.fileName);
+                assertSame(i % 2 == 0 ? ENTRY_CREATE : ENTRY_DELETE, e.kind);
+                ring.release();
+                assertNull(e.fileName);
+            }
+            assertNull(ring.poll());
+        }
+    }
+
+    /**
+     * Производитель не ждет потребителя: то, что не поместилось в кольцо, уходит в очередь
+     * переполнения без потерь и с сохранением порядка.
+     */
+    @Test(timeout = 5000)
+    public void testProducerNeverWaits() throws Exception
+    {
+        EventRing ring = new EventRing(4);
+        for (int i = 0; i < 1000; i++)
+        {
+            ring.put(null, ENTRY_CREATE, Paths.get("f" + i));
+        }
+        assertEquals(1000, ring.size());
+        assertEquals(996, ring.spilledCount());
+
+        for (int i = 0; i < 500; i++)
+        {
+            assertEquals(Paths.get("f" + i), ring.take().fileName);
+            ring.release();
+        }
+        // пока очередь переполнения не пуста, новые события идут за ней, а не в освободившиеся слоты
+        ring.put(null, ENTRY_DELETE, fileName);
+        for (int i = 500; i < 1000; i++)
+        {
+            assertEquals(Paths.get("f" + i), ring.take().fileName);
+            ring.release();
+        }
+        assertSame(ENTRY_DELETE, ring.take().kind);
+        ring.release();
+        assertNull(ring.poll());
+        assertEquals(0, ring.size());
+
+        ring.put(null, ENTRY_CREATE, fileName);
+        assertEquals(997, ring.spilledCount());
+    }
+
+    @Test(timeout = 5000)
+    public void testConcurrentProducerAndConsumer() throws Exception
+    {
+        final EventRing ring = new EventRing(2);
+        final int total = 10000;
+        Thread producer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (int i = 0; i < total; i++)
+                {
+                    ring.put(null, ENTRY_CREATE, fileName);
+                }
+            }
+        });
+        producer.start();
+
+        for (int i = 0; i < total; i++)
+        {
+            assertSame(fileName, ring.take().fileName);
+            ring.release();
+        }
+        producer.join();
+        assertEquals(0, ring.size());
+    }
+
+    /**
+     * Пропуск событий через кольцо не должен создавать объектов.
+     */
+    @Test
+    public void testSteadyStateDoesNotAllocate() throws Exception
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        EventRing ring = new EventRing(64);
+        long threadId = Thread.currentThread().getId();
+        cycle(ring, 200000);
+
+        long before = threads.getThreadAllocatedBytes(threadId);
+        cycle(ring, 1000000);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        // небольшой запас на служебные объекты самого замера
+        assertTrue("allocated " + allocated + " bytes", allocated < 4096);
+    }
+
+    /**
+     * Кольцо и {@link FileChangeMonitor.Directory#dispatch} вместе: без слушателей путь события
+     * не создает объектов, со слушателем остается только {@code path.resolve(fileName)}.
+     */
+    @Test
+    public void testDispatchAllocation() throws Exception
+    {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+        int count = 1000000;
+
+        EventRing ring = new EventRing(64);
+        FileChangeMonitor.Directory directory = new FileChangeMonitor.Directory(Paths.get("/tmp"), null, Priority.NORMAL);
+        dispatch(ring, directory, 200000);
+        long before = threads.getThreadAllocatedBytes(threadId);
+        dispatch(ring, directory, count);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+        assertTrue("no listeners: allocated " + allocated + " bytes", allocated < 4096);
+
+        directory.addDirectoryListener(new FileChangeListener()
+        {
+            @Override
+            public void fileModified(Path file)
+            {
+            }
+
+            @Override
+            public void fileCreated(Path file)
+            {
+            }
+
+            @Override
+            public void fileDeleted(Path file)
+            {
+            }
+        });
+        dispatch(ring, directory, 200000);
+        before = threads.getThreadAllocatedBytes(threadId);
+        dispatch(ring, directory, count);
+        long perEvent = (threads.getThreadAllocatedBytes(threadId) - before) / count;
+        // один Path на событие: объект пути и его байты, без копий массивов слушателей и итераторов
+        assertTrue("with listener: " + perEvent + " bytes per event", perEvent > 0 && perEvent <= 256);
+    }
+
+    private void dispatch(EventRing ring, FileChangeMonitor.Directory directory, int count) throws InterruptedException
+    {
+        for (int i = 0; i < count; i++)
+        {
+            ring.put(directory, ENTRY_CREATE, fileName);
+            EventRing.Event e = ring.take();
+            e.directory.dispatch(e.kind, e.fileName);
+            ring.release();
+        }
+    }
+
+    private void cycle(EventRing ring, int count) throws InterruptedException
+    {
+        for (int i = 0; i < count; i++)
+        {
+            ring.put(null, ENTRY_CREATE, fileName);
+            if (ring.take().fileName != fileName)
+            {
+                fail();
+            }
+            ring.release();
+        }
+    }
+}
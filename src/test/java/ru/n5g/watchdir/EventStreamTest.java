@@ -0,0 +1,276 @@
+package ru.n5g.watchdir;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+
+public class EventStreamTest
+{
+    private Path tempDir;
+    private Path socket;
+    private EventStreamServer server;
+    private FileChangeListener listener = mock(FileChangeListener.class);
+
+    @Before
+    public void setUp() throws Exception
+    {
+        tempDir = Files.createTempDirectory(getClass().getSimpleName()).toRealPath();
+        socket = tempDir.resolve("watchdir.sock");
+        reset(listener);
+        server = new EventStreamServer(socket, 16);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        server.stop();
+        FileUtils.forceDelete(tempDir.toFile());
+    }
+
+    @Test
+    public void testLiveEventsWithPrefix() throws Exception
+    {
+        RemoteWatchDir client = new RemoteWatchDir(listener, socket);
+        client.addPath("/data/config");
+        client.start();
+        awaitSubscribers(1);
+
+        server.fileCreated(Paths.get("/data/config/app.properties"));
+        server.fileModified(Paths.get("/data/import/big.csv"));
+        server.fileDeleted(Paths.get("/data/configuration.txt"));
+
+        verify(listener, timeout(1000)).fileCreated(eq(Paths.get("/data/config/app.properties")));
+        verify(listener, after(100).never()).fileModified(any(Path.class));
+        verify(listener, never()).fileDeleted(any(Path.class));
+        assertEquals(1, client.getLastSequence());
+
+        client.stop();
+    }
+
+    /**
+     * префикс через символическую ссылку совпадает с реальными путями событий
+     */
+    @Test
+    public void testPrefixThroughSymlink() throws Exception
+    {
+        Path real = Files.createDirectory(tempDir.resolve("real"));
+        Path link = Files.createSymbolicLink(tempDir.resolve("link"), real);
+
+        RemoteWatchDir client = new RemoteWatchDir(listener, socket);
+        client.addPath(link);
+        client.start();
+        awaitSubscribers(1);
+
+        server.fileCreated(real.resolve("app.properties"));
+        verify(listener, timeout(1000)).fileCreated(eq(real.resolve("app.properties")));
+
+        client.stop();
+    }
+
+    /**
+     * переподключение с последнего полученного номера
+     */
+    @Test
+    public void testResumeFromSequence() throws Exception
+    {
+        for (int i = 1; i <= 20; i++)
+        {
+            server.fileModified(Paths.get("/data/file" + i));
+        }
+
+        RemoteWatchDir client = new RemoteWatchDir(listener, socket);
+        client.setEpoch(server.getEpoch());
+        client.setLastSequence(17);
+        client.start();
+
+        awaitSequence(client, 20);
+        verify(listener).fileModified(eq(Paths.get("/data/file20")));
+        verify(listener).fileModified(eq(Paths.get("/data/file18")));
+        verify(listener).fileModified(eq(Paths.get("/data/file19")));
+        verify(listener, never()).fileModified(eq(Paths.get("/data/file17")));
+        verify(listener, never()).overflow(any(Path.class));
+        assertEquals(20, client.getLastSequence());
+
+        client.stop();
+    }
+
+    /**
+     * номер старше backlog: пропуск сообщается через overflow, затем приходит то, что осталось
+     */
+    @Test
+    public void testGapWhenBacklogExceeded() throws Exception
+    {
+        for (int i = 1; i <= 40; i++)
+        {
+            server.fileModified(Paths.get("/data/file" + i));
+        }
+
+        RemoteWatchDir client = new RemoteWatchDir(listener, socket);
+        client.addPath("/data");
+        client.setEpoch(server.getEpoch());
+        client.setLastSequence(5);
+        client.start();
+
+        awaitSequence(client, 40);
+        verify(listener).fileModified(eq(Paths.get("/data/file40")));
+        verify(listener).overflow(eq(Paths.get("/data")));
+        verify(listener).fileModified(eq(Paths.get("/data/file25")));
+        verify(listener, never()).fileModified(eq(Paths.get("/data/file24")));
+        assertEquals(40, client.getLastSequence());
+
+        client.stop();
+    }
+
+    /**
+     * новый экземпляр сервера начинает нумерацию заново: старый номер клиента не принимается
+     * за позицию в новом потоке
+     */
+    @Test
+    public void testResumeAcrossNewServerInstance() throws Exception
+    {
+        RemoteWatchDir client = new RemoteWatchDir(listener, socket);
+        client.addPath("/data");
+        client.start();
+        awaitSubscribers(1);
+        for (int i = 1; i <= 3; i++)
+        {
+            server.fileCreated(Paths.get("/data/old" + i));
+        }
+        awaitSequence(client, 3);
+        long oldEpoch = client.getEpoch();
+
+        server.stop();
+        server = new EventStreamServer(socket, 16);
+        server.start();
+        server.fileCreated(Paths.get("/data/new1"));
+        awaitSubscribers(1);
+
+        verify(listener, timeout(1000)).overflow(eq(Paths.get("/data")));
+        verify(listener, never()).fileCreated(eq(Paths.get("/data/new1")));
+        assertNotEquals(oldEpoch, client.getEpoch());
+        assertEquals(server.getEpoch(), client.getEpoch());
+        assertEquals(1, client.getLastSequence());
+
+        server.fileCreated(Paths.get("/data/new2"));
+        awaitSequence(client, 2);
+        verify(listener).fileCreated(eq(Paths.get("/data/new2")));
+
+        client.stop();
+    }
+
+    @Test
+    public void testReconnectAfterServerRestart() throws Exception
+    {
+        RemoteWatchDir client = new RemoteWatchDir(listener, socket);
+        client.start();
+        awaitSubscribers(1);
+
+        server.stop();
+        server.start();
+        awaitSubscribers(1);
+
+        server.fileCreated(Paths.get("/data/after-restart"));
+        verify(listener, timeout(1000)).fileCreated(eq(Paths.get("/data/after-restart")));
+
+        client.stop();
+    }
+
+    @Test
+    public void testFileSystemEvents() throws Exception
+    {
+        Path watched = Files.createDirectory(tempDir.resolve("watched"));
+        server.addPath(watched);
+
+        RemoteWatchDir client = new RemoteWatchDir(listener, socket);
+        client.addPath(watched);
+        client.start();
+        awaitSubscribers(1);
+
+        Path file = watched.resolve("test.txt");
+        FileUtils.touch(new File(file.toString()));
+        verify(listener, timeout(1000).atLeast(1)).fileCreated(eq(file));
+
+        client.stop();
+    }
+
+    /**
+     * потоки подписчиков завершаются и при остановке сервера, и после ухода клиента,
+     * даже если события для них не приходят
+     */
+    @Test
+    public void testSubscriberThreadsExit() throws Exception
+    {
+        RemoteWatchDir client = new RemoteWatchDir(listener, socket);
+        client.addPath("/never/matches");
+        client.start();
+        awaitSubscribers(1);
+        client.stop();
+        awaitThreads(0);
+
+        client = new RemoteWatchDir(listener, socket);
+        client.start();
+        awaitSubscribers(1);
+        server.stop();
+        awaitThreads(0);
+        client.stop();
+    }
+
+    /**
+     * ожидание по номеру, а не verify с timeout: mockito 1.9.5 не ждет, если метод уже
+     * вызывался с другими аргументами
+     */
+    private void awaitSequence(RemoteWatchDir client, long sequence) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 1000;
+        while (client.getLastSequence() < sequence)
+        {
+            assertTrue("last sequence " + client.getLastSequence(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private void awaitThreads(int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (subscriberThreads() > count)
+        {
+            assertTrue("subscriber threads left: " + subscriberThreads(), System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    private int subscriberThreads()
+    {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.isAlive() && "watchdir-stream-subscriber".equals(thread.getName()))
+            {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void awaitSubscribers(int count) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + 2000;
+        while (server.getSubscriberCount() < count)
+        {
+            assertTrue("subscriber did not connect", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package ru.n5g.watchdir;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+import static org.junit.Assert.*;
+
+/**
+ * Нативный backend собирается только в профиле inotify (JDK 22+) в META-INF/versions/22,
+ * на остальных JDK и платформах тест пропускается.
+ */
+public class InotifyBackendTest
+{
+    private static final String INOTIFY_BACKEND = "ru.n5g.watchdir.InotifyBackend";
+
+    private Path tempDir;
+    private WatchBackend backend;
+    private Thread reader;
+    private final BlockingQueue<Object[]> events = new LinkedBlockingQueue<>();
+
+    @Before
+    public void setUp() throws Exception
+    {
+        Assume.assumeTrue(System.getProperty("os.name", "").startsWith("Linux"));
+        Class<?> type;
+        try
+        {
+            type = Class.forName(INOTIFY_BACKEND);
+        }
+        catch (ClassNotFoundException | UnsupportedClassVersionError e)
+        {
+            type = null;
+        }
+        Assume.assumeNotNull(type);
+
+        tempDir = Files.createTempDirectory(getClass().getSimpleName()).toRealPath();
+        backend = (WatchBackend) type.getDeclaredConstructor().newInstance();
+        reader = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    backend.run(new WatchBackend.Sink()
+                    {
+                        @Override
+                        public void event(WatchKey key, WatchEvent.Kind<?> kind, Path fileName)
+                        {
+                            events.add(new Object[]{key, kind, fileName});
+                        }
+                    });
+                }
+                catch (InterruptedException ignored)
+                {
+                }
+            }
+        }, "inotify-test-reader");
+        reader.start();
+    }
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (backend != null)
+        {
+            backend.close();
+            reader.join(5000);
+        }
+        if (tempDir != null)
+        {
+            FileUtils.forceDelete(tempDir.toFile());
+        }
+    }
+
+    @Test
+    public void testEvents() throws Exception
+    {
+        assertEquals("inotify", backend.name());
+        WatchKey key = backend.register(tempDir);
+        assertSame(key, backend.register(tempDir));
+        assertEquals(tempDir, key.watchable());
+        assertTrue(key.isValid());
+
+        Path file = tempDir.resolve("test.txt");
+        Files.createFile(file);
+        expect(key, ENTRY_CREATE, "test.txt");
+
+        Files.write(file, new byte[]{1});
+        expect(key, ENTRY_MODIFY, "test.txt");
+
+        // переименование приходит как удаление и создание, cookie не используется
+        Files.move(file, tempDir.resolve("renamed.txt"));
+        expect(key, ENTRY_DELETE, "test.txt");
+        expect(key, ENTRY_CREATE, "renamed.txt");
+
+        Files.delete(tempDir.resolve("renamed.txt"));
+        expect(key, ENTRY_DELETE, "renamed.txt");
+
+        key.cancel();
+        assertFalse(key.isValid());
+        FileUtils.touch(new File(tempDir.resolve("after-cancel.txt").toString()));
+        Object[] event = events.poll(200, TimeUnit.MILLISECONDS);
+        assertNull(event == null ? null : event[1] + " " + event[2], event);
+    }
+
+    /**
+     * close() будит поток чтения, дескрипторы и память освобождает сам поток
+     */
+    @Test
+    public void testCloseStopsReader() throws Exception
+    {
+        WatchKey key = backend.register(tempDir);
+        long start = System.nanoTime();
+        backend.close();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertTrue("reader woke up by timeout", System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+
+        assertFalse(key.isValid());
+        key.cancel();
+        try
+        {
+            backend.register(tempDir);
+            fail();
+        }
+        catch (IOException expected)
+        {
+        }
+    }
+
+    private void expect(WatchKey key, WatchEvent.Kind<?> kind, String fileName) throws InterruptedException
+    {
+        Object[] event;
+        do
+        {
+            event = events.poll(2, TimeUnit.SECONDS);
+            assertNotNull("no " + kind + " " + fileName, event);
+        }
+        // лишние MODIFY (атрибуты, повторная запись) не важны
+        while (event[1] == ENTRY_MODIFY && kind != ENTRY_MODIFY);
+        assertSame(key, event[0]);
+        assertSame(kind, event[1]);
+        assertEquals(Paths.get(fileName), event[2]);
+    }
+}
@@ -0,0 +1,140 @@
+package ru.n5g.watchdir;
+
+import org.junit.Test;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static org.junit.Assert.*;
+
+public class PrioritySchedulerTest
+{
+    private static final int REALTIME = Priority.REALTIME.ordinal();
+    private static final int BULK = Priority.BULK.ordinal();
+    private static final long MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final Path fileName = Paths.get("test.txt");
+    private final EventRing[] rings = newRings(64);
+
+    /**
+     * событие REALTIME обгоняет давно ждущую очередь BULK, даже если кольцо BULK переполнено
+     */
+    @Test
+    public void testRealtimeAheadOfBulkBacklog() throws Exception
+    {
+        PriorityScheduler scheduler = new PriorityScheduler(rings, 64, 50 * MILLI);
+        for (int i = 0; i < 1000; i++)
+        {
+            rings[BULK].put(null, ENTRY_MODIFY, fileName);
+        }
+        assertTrue(rings[BULK].spilledCount() > 0);
+
+        long now = System.nanoTime();
+        for (int i = 0; i < 200; i++)
+        {
+            now += MILLI;
+            assertEquals(BULK, serve(scheduler, now));
+        }
+
+        // очереди BULK уже больше 200 мс, но ее обслуживают каждую миллисекунду
+        rings[REALTIME].put(null, ENTRY_MODIFY, fileName);
+        assertEquals(REALTIME, serve(scheduler, now + MILLI));
+        assertEquals(BULK, serve(scheduler, now + 2 * MILLI));
+    }
+
+    /**
+     * поток REALTIME не останавливает BULK: одно событие после starvationLimit пропусков
+     */
+    @Test
+    public void testBulkProgressUnderRealtimeStorm() throws Exception
+    {
+        int limit = 8;
+        PriorityScheduler scheduler = new PriorityScheduler(rings, limit, Long.MAX_VALUE);
+        rings[BULK].put(null, ENTRY_MODIFY, fileName);
+        rings[BULK].put(null, ENTRY_MODIFY, fileName);
+
+        long now = System.nanoTime();
+        int gap = 0;
+        int served = 0;
+        for (int i = 0; i < 100 && served < 2; i++)
+        {
+            rings[REALTIME].put(null, ENTRY_MODIFY, fileName);
+            if (serve(scheduler, now) == BULK)
+            {
+                assertTrue("gap " + gap, gap <= limit);
+                if (served == 0)
+                {
+                    assertEquals(limit, gap);
+                }
+                served++;
+                gap = 0;
+            }
+            else
+            {
+                gap++;
+            }
+        }
+        assertEquals(2, served);
+        assertTrue(rings[BULK].isEmpty());
+    }
+
+    /**
+     * ограничение по времени отсчитывается от последнего обслуживания класса
+     */
+    @Test
+    public void testStarvationTimeSinceLastServed() throws Exception
+    {
+        PriorityScheduler scheduler = new PriorityScheduler(rings, Integer.MAX_VALUE, 50 * MILLI);
+        long now = System.nanoTime();
+        rings[BULK].put(null, ENTRY_MODIFY, fileName);
+        rings[BULK].put(null, ENTRY_MODIFY, fileName);
+
+        int realtime = 0;
+        for (int i = 1; i <= 60; i++)
+        {
+            rings[REALTIME].put(null, ENTRY_MODIFY, fileName);
+            int selected = serve(scheduler, now + i * MILLI);
+            if (selected == BULK)
+            {
+                break;
+            }
+            realtime++;
+        }
+        assertEquals(49, realtime);
+
+        // после принудительного события отсчет начинается заново
+        assertEquals(REALTIME, serve(scheduler, now + 51 * MILLI));
+        rings[REALTIME].put(null, ENTRY_MODIFY, fileName);
+        assertEquals(REALTIME, serve(scheduler, now + 99 * MILLI));
+        rings[REALTIME].put(null, ENTRY_MODIFY, fileName);
+        assertEquals(BULK, serve(scheduler, now + 100 * MILLI));
+    }
+
+    @Test
+    public void testEmpty() throws Exception
+    {
+        PriorityScheduler scheduler = new PriorityScheduler(rings, 64, 50 * MILLI);
+        assertEquals(-1, scheduler.select(System.nanoTime()));
+    }
+
+    private int serve(PriorityScheduler scheduler, long now)
+    {
+        int selected = scheduler.select(now);
+        assertTrue(selected >= 0);
+        assertNotNull(rings[selected].poll());
+        rings[selected].release();
+        return selected;
+    }
+
+    private static EventRing[] newRings(int capacity)
+    {
+        EventRing[] rings = new EventRing[Priority.values().length];
+        for (int i = 0; i < rings.length; i++)
+        {
+            rings[i] = new EventRing(capacity);
+        }
+        return rings;
+    }
+}
@@ -0,0 +1,52 @@
+package ru.n5g.watchdir;
+
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class WatchBackendTest
+{
+    private static final String BACKEND = "watchdir.backend";
+
+    private final String saved = System.getProperty(BACKEND);
+
+    @After
+    public void tearDown() throws Exception
+    {
+        if (saved == null)
+        {
+            System.clearProperty(BACKEND);
+        }
+        else
+        {
+            System.setProperty(BACKEND, saved);
+        }
+    }
+
+    /**
+     * без --enable-native-access inotify не выбирается сам, чтобы JVM не предупреждала в stderr
+     */
+    @Test
+    public void testAutoNeedsNativeAccess() throws Exception
+    {
+        System.clearProperty(BACKEND);
+        try (WatchBackend backend = WatchBackend.create())
+        {
+            if (!WatchBackend.nativeAccessEnabled())
+            {
+                assertEquals("watchservice", backend.name());
+            }
+        }
+    }
+
+    @Test
+    public void testWatchServiceRequested() throws Exception
+    {
+        System.setProperty(BACKEND, "watchservice");
+        try (WatchBackend backend = WatchBackend.create())
+        {
+            assertEquals("watchservice", backend.name());
+        }
+    }
+}
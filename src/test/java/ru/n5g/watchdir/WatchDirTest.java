@@ -4,14 +4,22 @@ import org.apache.commons.io.FileUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 import java.io.File;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
-import static org.mockito.Matchers.any;
-import static org.mockito.Matchers.eq;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 /**
@@ -75,7 +83,7 @@ public class WatchDirTest
         String underDir = TEST_DIR + "underDir" + File.separator;
         FileUtils.forceMkdir(new File(underDir));
         FileUtils.touch(new File(underDir + "file1.txt"));
-        verify(listener, timeout(100).never()).fileModified(eq(Paths.get(underDir + "file1.txt")));
+        verify(listener, after(100).never()).fileModified(eq(Paths.get(underDir + "file1.txt")));
 
         watchDir.stop();
     }
@@ -93,7 +101,7 @@ public class WatchDirTest
         String underDir = TEST_DIR + "underDir" + File.separator;
         FileUtils.forceMkdir(new File(underDir));
         FileUtils.touch(new File(underDir + "file1.txt"));
-        verify(listener, timeout(100).never()).fileModified(eq(Paths.get(underDir + "file1.txt")));
+        verify(listener, after(100).never()).fileModified(eq(Paths.get(underDir + "file1.txt")));
 
         watchDir.stop();
     }
@@ -152,7 +160,7 @@ public class WatchDirTest
     public void testRestartMonitoring() throws Exception
     {
         FileUtils.touch(new File(path.toString()));
-        verify(listener, timeout(100).never()).fileModified(eq(path));
+        verify(listener, after(100).never()).fileModified(eq(path));
 
         reset(listener);
         watchDir.start();
@@ -164,7 +172,7 @@ public class WatchDirTest
         watchDir.stop();
 
         FileUtils.touch(new File(path.toString()));
-        verify(listener, timeout(100).never()).fileModified(eq(path));
+        verify(listener, after(100).never()).fileModified(eq(path));
 
         reset(listener);
         watchDir.start();
@@ -279,7 +287,7 @@ public class WatchDirTest
     public void testStartMonitoring() throws Exception
     {
         FileUtils.touch(new File(path.toString()));
-        verify(listener, timeout(100).never()).fileModified(any(Path.class));
+        verify(listener, after(100).never()).fileModified(any(Path.class));
 
         watchDir.start();
 
@@ -301,7 +309,274 @@ public class WatchDirTest
         watchDir.stop();
 
         FileUtils.forceDelete(new File(path.toString()));
-        verify(listener, timeout(100).never()).fileModified(any(Path.class));
+        verify(listener, after(100).never()).fileModified(any(Path.class));
+    }
+
+    /**
+     * события папки с приоритетом учитываются в задержке своего класса
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPriorityLatency() throws Exception
+    {
+        long before = FileChangeMonitor.getLatencyStats(Priority.REALTIME).getCount();
+
+        watchDir = new WatchDir(listener);
+        watchDir.addPath(TEST_DIR, Priority.REALTIME);
+        watchDir.start();
+
+        FileUtils.touch(new File(path.toString()));
+        verify(listener, timeout(100).atLeast(1)).fileCreated(eq(path));
+        assertTrue(FileChangeMonitor.getLatencyStats(Priority.REALTIME).getCount() > before);
+
+        watchDir.stop();
+    }
+
+    /**
+     * приоритет папки пересчитывается по оставшимся регистрациям
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testPriorityFollowsRegistrations() throws Exception
+    {
+        Path dir = Files.createDirectory(Paths.get(TEST_DIR + "priority")).toRealPath();
+        FileChangeListener realtime = mock(FileChangeListener.class);
+        FileChangeListener bulk = mock(FileChangeListener.class);
+
+        FileChangeMonitor.register(realtime, dir, Priority.REALTIME);
+        FileChangeMonitor.register(bulk, dir, Priority.BULK);
+        assertSame(Priority.REALTIME, FileChangeMonitor.directoryOf(dir).getPriority());
+
+        // повторная регистрация с более низким приоритетом
+        FileChangeMonitor.register(realtime, dir, Priority.NORMAL);
+        assertSame(Priority.NORMAL, FileChangeMonitor.directoryOf(dir).getPriority());
+
+        FileChangeMonitor.unregister(realtime, dir);
+        assertSame(Priority.BULK, FileChangeMonitor.directoryOf(dir).getPriority());
+
+        FileChangeMonitor.unregister(bulk);
+        assertNull(FileChangeMonitor.directoryOf(dir));
+    }
+
+    /**
+     * вложенные корни: папка получает приоритет самого близкого корня при любом порядке добавления
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testNestedRootsPriority() throws Exception
+    {
+        Path root = Paths.get(TEST_DIR + "tree");
+        Path config = root.resolve("config");
+        Files.createDirectories(config.resolve("sub"));
+        Files.createDirectories(root.resolve("import"));
+
+        watchDir = new WatchDir(listener);
+        watchDir.addPath(config, Priority.REALTIME);
+        watchDir.addPath(root, Priority.BULK);
+        watchDir.start();
+        assertNestedPriorities(root);
+        watchDir.stop();
+
+        watchDir = new WatchDir(listener);
+        watchDir.addPath(root, Priority.BULK);
+        watchDir.addPath(config, Priority.REALTIME);
+        watchDir.start();
+        assertNestedPriorities(root);
+        watchDir.stop();
+
+        // корень добавлен после старта
+        watchDir = new WatchDir(listener);
+        watchDir.addPath(config, Priority.REALTIME);
+        watchDir.start();
+        watchDir.addPath(root, Priority.BULK);
+        assertNestedPriorities(root);
+        watchDir.stop();
+    }
+
+    private void assertNestedPriorities(Path root) throws Exception
+    {
+        assertSame(Priority.BULK, FileChangeMonitor.directoryOf(root.toRealPath()).getPriority());
+        assertSame(Priority.BULK, FileChangeMonitor.directoryOf(root.resolve("import").toRealPath()).getPriority());
+        assertSame(Priority.REALTIME, FileChangeMonitor.directoryOf(root.resolve("config").toRealPath()).getPriority());
+        assertSame(Priority.REALTIME,
+                FileChangeMonitor.directoryOf(root.resolve("config/sub").toRealPath()).getPriority());
+    }
+
+    /**
+     * событие REALTIME доставляется, пока слушатель BULK еще занят своим событием
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testRealtimeNotBlockedBySlowBulk() throws Exception
+    {
+        Path bulkDir = Files.createDirectory(Paths.get(TEST_DIR + "import"));
+        Path configDir = Files.createDirectory(Paths.get(TEST_DIR + "config"));
+        final CountDownLatch bulkEntered = new CountDownLatch(1);
+        final CountDownLatch bulkRelease = new CountDownLatch(1);
+        final CountDownLatch realtimeDelivered = new CountDownLatch(1);
+        FileChangeListener bulk = mock(FileChangeListener.class);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                bulkEntered.countDown();
+                bulkRelease.await(10, TimeUnit.SECONDS);
+                return null;
+            }
+        }).when(bulk).fileCreated(any(Path.class));
+        FileChangeListener realtime = mock(FileChangeListener.class);
+        doAnswer(new Answer<Void>()
+        {
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable
+            {
+                realtimeDelivered.countDown();
+                return null;
+            }
+        }).when(realtime).fileCreated(any(Path.class));
+
+        WatchDir bulkWatch = new WatchDir(bulk);
+        bulkWatch.addPath(bulkDir, Priority.BULK);
+        bulkWatch.start();
+        watchDir = new WatchDir(realtime);
+        watchDir.addPath(configDir, Priority.REALTIME);
+        watchDir.start();
+        try
+        {
+            Files.createFile(bulkDir.resolve("big.csv"));
+            assertTrue(bulkEntered.await(2, TimeUnit.SECONDS));
+
+            // слушатель BULK отпускается только в finally
+            Files.createFile(configDir.resolve("app.properties"));
+            assertTrue("REALTIME waited for the BULK listener", realtimeDelivered.await(2, TimeUnit.SECONDS));
+        }
+        finally
+        {
+            bulkRelease.countDown();
+            bulkWatch.stop();
+            watchDir.stop();
+        }
+    }
+
+    /**
+     * медленный слушатель не должен приводить к потере событий: поток наблюдения
+     * не ждет диспетчер, а то, что все же потеряно ОС, приходит как overflow
+     *
+     * @throws Exception
+     */
+    @Test(timeout = 120000)
+    public void testSlowListenerBurst() throws Exception
+    {
+        final int total = 6000;
+        final Set<Path> created = ConcurrentHashMap.newKeySet();
+        final AtomicInteger overflows = new AtomicInteger();
+        FileChangeListener slow = new FileChangeListener()
+        {
+            @Override
+            public void fileModified(Path file)
+            {
+            }
+
+            @Override
+            public void fileCreated(Path file)
+            {
+                created.add(file);
+                try
+                {
+                    Thread.sleep(1);
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void fileDeleted(Path file)
+            {
+            }
+
+            @Override
+            public void overflow(Path directory)
+            {
+                overflows.incrementAndGet();
+            }
+        };
+        watchDir = new WatchDir(slow);
+        watchDir.addPath(TEST_DIR);
+        watchDir.start();
+
+        for (int i = 0; i < total; i++)
+        {
+            Files.createFile(Paths.get(TEST_DIR + "burst" + i));
+        }
+        while (created.size() < total && overflows.get() == 0)
+        {
+            Thread.sleep(50);
+        }
+        assertEquals("overflows: " + overflows.get(), total, created.size());
+
+        watchDir.stop();
+    }
+
+    /**
+     * исключение или прерывание в слушателе не останавливает общий поток рассылки
+     *
+     * @throws Exception
+     */
+    @Test
+    public void testFailingListenerKeepsDispatcher() throws Exception
+    {
+        final Path error = Paths.get(TEST_DIR + "error.txt");
+        final Path interrupt = Paths.get(TEST_DIR + "interrupt.txt");
+        final Set<Path> created = ConcurrentHashMap.newKeySet();
+        FileChangeListener failing = new FileChangeListener()
+        {
+            @Override
+            public void fileModified(Path file)
+            {
+            }
+
+            @Override
+            public void fileCreated(Path file)
+            {
+                created.add(file);
+                if (file.equals(error))
+                {
+                    throw new AssertionError(file);
+                }
+                if (file.equals(interrupt))
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void fileDeleted(Path file)
+            {
+            }
+        };
+        watchDir = new WatchDir(failing);
+        watchDir.addPath(TEST_DIR);
+        watchDir.start();
+
+        FileUtils.touch(new File(error.toString()));
+        FileUtils.touch(new File(interrupt.toString()));
+        FileUtils.touch(new File(path.toString()));
+        for (int i = 0; i < 40 && !created.contains(path); i++)
+        {
+            Thread.sleep(50);
+        }
+        assertTrue(created.toString(), created.contains(error));
+        assertTrue(created.toString(), created.contains(interrupt));
+        assertTrue(created.toString(), created.contains(path));
+
+        watchDir.stop();
     }
 
     @Test